@@ -0,0 +1,158 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import picocli.CommandLine;
+
+/**
+ * Runs the whole tool against {@link MockThingsBoard} and {@link MockUbidots}, so the
+ * throughput of an export or migration, and how it scales with --parallelism and server
+ * latency, can be measured without the real servers.
+ *
+ * <p>export runs the CLI as a user would to export every device to CSV files in a new
+ * directory. migrate uploads the files of an export made in the setup to Ubidots. Each
+ * invocation is a whole run so the benchmarks report runs per second; the rows counter gives
+ * the readings per second.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EndToEndBenchmark {
+
+    // Each device's keys, which take turns at being long, double, text and boolean.
+    private static final int keys = 4;
+
+    // The readings of a key are a minute apart.
+    private static final long stepMs = 60_000;
+
+    @Param({ "1", "16" })
+    public int devices;
+
+    @Param({ "100000" })
+    public long readings;
+
+    @Param({ "0", "20" })
+    public long latencyMs;
+
+    @Param({ "1", "8" })
+    public int parallelism;
+
+    private MockThingsBoard thingsBoard;
+    private MockUbidots ubidots;
+    private Path dir;
+    private Path exported;
+    private Path config;
+    private final List<Path> exports = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        thingsBoard = new MockThingsBoard(devices, keys, readings, stepMs, 32, latencyMs, latencyMs / 4, 0);
+        ubidots = new MockUbidots(32, latencyMs, latencyMs / 4, 0, 0);
+
+        dir = Files.createTempDirectory("tbexport-bench");
+        config = dir.resolve("config.json");
+        Files.write(config, ("{\"thingsboard\":{\"host\":\"" + thingsBoard.url() + "\",\"user\":\"" + MockThingsBoard.username
+            + "\",\"password\":\"" + MockThingsBoard.password + "\"},\"ubidots\":{\"apikey\":\"" + MockUbidots.apiKey
+            + "\",\"url\":\"" + ubidots.apiUrl() + "\"}}").getBytes(StandardCharsets.UTF_8));
+
+        // The files the migrate benchmark uploads.
+        exported = dir.resolve("exported");
+        if (run(export(exported)) != 0) {
+            throw new IllegalStateException("The export for the migrate benchmark failed");
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteExports() throws IOException {
+        for (final Path p : exports) {
+            delete(p);
+        }
+        exports.clear();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        thingsBoard.close();
+        ubidots.close();
+        delete(dir);
+    }
+
+    @Benchmark
+    public int export(final RowCounter counter) throws Exception {
+        final Path out = Files.createTempDirectory(dir, "export");
+        exports.add(out);
+        final int status = run(export(out));
+        counter.rows += devices * keys * readings;
+        return status;
+    }
+
+    @Benchmark
+    public int migrate(final RowCounter counter) throws Exception {
+        final long before = ubidots.values();
+        final int status = run(migrate());
+        counter.rows += ubidots.values() - before;
+        return status;
+    }
+
+    private String[] export(final Path out) {
+        final List<String> args = new ArrayList<>(List.of(
+            "-h", thingsBoard.url(), "-u", MockThingsBoard.username, "-p", MockThingsBoard.password,
+            "-d", out.toString(), "--parallelism", Integer.toString(parallelism)));
+        for (int i = 0; i < devices; i++) {
+            args.add("-n");
+            args.add(MockThingsBoard.deviceName(i));
+        }
+        return args.toArray(new String[0]);
+    }
+
+    private String[] migrate() {
+        final List<String> args = new ArrayList<>(List.of(
+            "-m", "-c", config.toString(), "-d", exported.toString(), "--parallelism", Integer.toString(parallelism),
+            "--ubidots-token-rate", "0", "--ubidots-account-rate", "0"));
+        for (int i = 0; i < devices; i++) {
+            args.add("-n");
+            args.add(MockThingsBoard.deviceName(i));
+        }
+        return args.toArray(new String[0]);
+    }
+
+    private static int run(final String[] args) {
+        return new CommandLine(new CLI()).execute(args);
+    }
+
+    private static void delete(final Path root) throws IOException {
+        if ( ! Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (final Path p : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
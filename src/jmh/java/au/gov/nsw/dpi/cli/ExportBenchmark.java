@@ -0,0 +1,142 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the export paths from the pages returned by ThingsBoard to the text written to
+ * the files, without the network or the disk.
+ *
+ * <p>csvKey is the per-key CSV export of exportKeyToCSV, by way of the {@link CsvPageWriter}
+ * it writes with, and json is the merge of several keys into ThingsBoard's JSON format by the
+ * {@link JsonRowWriter} of exportToJSON. Both read synthetic pages through a
+ * {@link TimeseriesPager} and write to a Writer that only counts characters.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ExportBenchmark {
+
+    // The readings of a key are a minute apart.
+    private static final long stepMs = 60_000;
+
+    private static final int pageLimit = 10000;
+
+    // The keys of a device in the JSON benchmark, which share the rows between them.
+    private static final int jsonKeys = 4;
+
+    @Param({ "10000", "1000000", "50000000" })
+    public long rows;
+
+    @Param({ "MIXED", "LONG", "DOUBLE", "TEXT" })
+    public String kind;
+
+    private Synthetic.Kind readings;
+    private ExecutorService executor;
+    private TimeseriesPager pager;
+
+    /**
+     * A Writer that discards its output, counting the characters.
+     */
+    static final class CountingWriter extends Writer {
+        long chars = 0;
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            chars += len;
+        }
+
+        @Override
+        public void write(final String str) {
+            chars += str.length();
+        }
+
+        @Override
+        public Writer append(final CharSequence csq) {
+            chars += csq.length();
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        readings = Synthetic.Kind.valueOf(kind);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "shard-fetch");
+            t.setDaemon(true);
+            return t;
+        });
+        pager = new TimeseriesPager(executor, pageLimit, 1, 4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long csvKey(final RowCounter counter) throws Exception {
+        final CountingWriter out = new CountingWriter();
+        final CsvPageWriter writer = new CsvPageWriter(out, null, false);
+
+        final long earliest = Synthetic.earliestTs(rows, stepMs) - 1;
+        pager.fetch(earliest, Synthetic.latestTs, Synthetic.fetcher("key", readings, rows, stepMs), page -> {
+            writer.page(page);
+            counter.rows += page.size();
+        });
+        writer.finish();
+
+        return out.chars;
+    }
+
+    @Benchmark
+    public long json(final RowCounter counter) throws Exception {
+        final CountingWriter out = new CountingWriter();
+        final long keyRows = rows / jsonKeys;
+        final long earliest = Synthetic.earliestTs(keyRows, stepMs) - 1;
+
+        final List<TimeseriesPager.Pages> sources = new ArrayList<>(jsonKeys);
+        for (int k = 0; k < jsonKeys; k++) {
+            sources.add(pager.open(earliest, Synthetic.latestTs, Synthetic.fetcher("key" + k, readings, keyRows, stepMs)));
+        }
+
+        final JsonRowWriter writer = new JsonRowWriter(jsonKeys, Collections.emptyMap(), pageLimit);
+        try (TimeseriesMerger merger = new TimeseriesMerger(sources)) {
+            writer.write(merger, out, null);
+        }
+        for (int k = 0; k < jsonKeys; k++) {
+            counter.rows += writer.written(k);
+        }
+
+        return out.chars;
+    }
+}
@@ -0,0 +1,101 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks reading an exported CSV file and packing its rows into Ubidots request
+ * batches, as the migrate path does before each upload.
+ *
+ * <p>The file is written once per trial by the CSV export code from synthetic pages, so it
+ * has the same format as a real export, and is deleted at the end of the trial.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MigrateBenchmark {
+
+    private static final long stepMs = 60_000;
+
+    @Param({ "10000", "1000000", "50000000" })
+    public long rows;
+
+    // Migration needs numeric values so text readings are not used.
+    @Param({ "LONG", "DOUBLE" })
+    public String kind;
+
+    @Param({ "none", "gzip" })
+    public String compress;
+
+    private Path csv;
+
+    @Setup
+    public void setup() throws Exception {
+        final Compression compression = Compression.forName(compress);
+        csv = Files.createTempFile("migrate-bench", ".csv" + compression.extension());
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try (BufferedWriter out = compression.newWriter(csv)) {
+            final CsvRowEncoder encoder = new CsvRowEncoder(false);
+            final TimeseriesPager pager = new TimeseriesPager(executor, 10000, 1, 4);
+            pager.fetch(Synthetic.earliestTs(rows, stepMs) - 1, Synthetic.latestTs, Synthetic.fetcher("key", Synthetic.Kind.valueOf(kind), rows, stepMs), page -> {
+                for (int i = 0; i < page.size(); i++) {
+                    encoder.encode(page, i);
+                }
+                encoder.writeTo(out);
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(csv);
+    }
+
+    @Benchmark
+    public long csvRead(final RowCounter counter) throws Exception {
+        final long[] timestamps = new long[200];
+        final double[] values = new double[200];
+        final UploadBatcher batcher = new UploadBatcher(10000);
+        long batches = 0;
+
+        try (CsvBatchReader reader = new CsvBatchReader(Compression.newChannel(csv))) {
+            int n;
+            while ((n = reader.read(timestamps, values)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (batcher.add(timestamps[i], values[i]) != null) {
+                        batches++;
+                    }
+                }
+                counter.rows += n;
+            }
+        }
+        if (batcher.flush() != null) {
+            batches++;
+        }
+
+        return batches;
+    }
+}
@@ -0,0 +1,41 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Starts {@link MockThingsBoard} and {@link MockUbidots} and prints how to point the tool at
+ * them, for trying the tool out or load testing it by hand.
+ *
+ * <p>Arguments, all optional: devices, keys per device, readings per key, latency in ms,
+ * ThingsBoard requests per second and Ubidots requests per second per token. The servers
+ * run until the process is stopped.</p>
+ */
+public final class MockServers {
+
+    private MockServers() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int devices = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final int keys = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final long readings = args.length > 2 ? Long.parseLong(args[2]) : 100000;
+        final long latencyMs = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        final int tbRate = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        final int ubidotsTokenRate = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+
+        final MockThingsBoard thingsBoard = new MockThingsBoard(devices, keys, readings, 60_000, 32, latencyMs, latencyMs / 4, tbRate);
+        final MockUbidots ubidots = new MockUbidots(32, latencyMs, latencyMs / 4, ubidotsTokenRate * 4, ubidotsTokenRate);
+
+        System.out.println("ThingsBoard: -h " + thingsBoard.url() + " -u " + MockThingsBoard.username + " -p " + MockThingsBoard.password);
+        System.out.println("Devices: " + MockThingsBoard.deviceName(0) + " to " + MockThingsBoard.deviceName(devices - 1));
+        System.out.println("Ubidots config: \"ubidots\": { \"apikey\": \"" + MockUbidots.apiKey + "\", \"url\": \"" + ubidots.apiUrl() + "\" }");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("ThingsBoard requests " + thingsBoard.requests() + ", rejected " + thingsBoard.rejected());
+            System.out.println("Ubidots requests " + ubidots.requests() + ", rejected " + ubidots.rejected() + ", values saved " + ubidots.values());
+            thingsBoard.close();
+            ubidots.close();
+        }));
+        new CountDownLatch(1).await();
+    }
+}
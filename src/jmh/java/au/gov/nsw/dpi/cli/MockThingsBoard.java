@@ -0,0 +1,430 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+
+/**
+ * A stand-in for the parts of the ThingsBoard 2.5 REST API the export uses: login and token
+ * refresh, logout, finding devices by name, listing the tenant's devices a page at a time,
+ * timeseries keys, latest values and timeseries history, including aggregation.
+ *
+ * <p>The tenant has a fixed number of devices, named device-0000 and so on, each with the
+ * same keys, key0 and so on. Every key has a fixed number of readings one step apart,
+ * ending at {@link Synthetic#latestTs}. The readings are generated as they are requested so
+ * the data volume is only limited by the time it takes to send. Keys take turns to be
+ * longs, doubles, numbers with a fraction sent as text, and booleans. Like ThingsBoard 2.5
+ * every value is sent as a string unless useStrictDataTypes=true is given.</p>
+ *
+ * <p>Timeseries requests return the readings where startTs &lt; ts &lt;= endTs, latest
+ * first, at most limit of them for each key.</p>
+ */
+final class MockThingsBoard extends MockServer {
+
+    static final String username = "tenant@thingsboard.org";
+    static final String password = "tenant";
+
+    private static final String tenantId = new UUID(0x7e4a47L, 1).toString();
+
+    // How long issued tokens are valid for, as ThingsBoard's defaults.
+    private static final long tokenSeconds = 9000;
+    private static final long refreshTokenSeconds = 604800;
+
+    private static final Gson gson = new Gson();
+
+    private final int devices;
+    private final int keys;
+    private final long readings;
+    private final long stepMs;
+
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    private final Set<String> refreshTokens = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param devices the number of devices.
+     * @param keys the number of timeseries keys of each device.
+     * @param readings the number of readings of each key.
+     * @param stepMs the time between readings.
+     * @param threads the number of requests handled at the same time.
+     * @param latencyMs the delay added to every request.
+     * @param jitterMs the largest random delay added on top of the latency.
+     * @param requestsPerSecond the requests allowed per second, 0 for no limit.
+     * @throws IOException if the server cannot be started.
+     */
+    MockThingsBoard(final int devices, final int keys, final long readings, final long stepMs, final int threads, final long latencyMs, final long jitterMs, final int requestsPerSecond) throws IOException {
+        super(threads, latencyMs, jitterMs, requestsPerSecond);
+        this.devices = devices;
+        this.keys = keys;
+        this.readings = readings;
+        this.stepMs = stepMs;
+    }
+
+    static String deviceName(final int index) {
+        return String.format("device-%04d", index);
+    }
+
+    @Override
+    protected String handle(final String method, final String path, final Map<String, String> query, final Map<String, String> headers, final String body) throws HttpError {
+        if ("POST".equals(method) && "/api/auth/login".equals(path)) {
+            final Map<?, ?> login = gson.fromJson(body, Map.class);
+            if (login == null || ! username.equals(login.get("username")) || ! password.equals(login.get("password"))) {
+                throw new HttpError(401, "Invalid username or password");
+            }
+            return issueTokens();
+        }
+
+        if ("POST".equals(method) && "/api/auth/token".equals(path)) {
+            final Map<?, ?> refresh = gson.fromJson(body, Map.class);
+            if (refresh == null || ! refreshTokens.contains(refresh.get("refreshToken"))) {
+                throw new HttpError(401, "Invalid refresh token");
+            }
+            return issueTokens();
+        }
+
+        final String auth = headers.getOrDefault("x-authorization", "");
+        if ( ! auth.startsWith("Bearer ") || ! tokens.contains(auth.substring(7))) {
+            throw new HttpError(401, "Authentication failed");
+        }
+
+        if ("POST".equals(method) && "/api/auth/logout".equals(path)) {
+            tokens.remove(auth.substring(7));
+            return "";
+        }
+
+        if ( ! "GET".equals(method)) {
+            throw new HttpError(405, "Method not allowed");
+        }
+
+        if ("/api/tenant/devices".equals(path)) {
+            if (query.containsKey("deviceName")) {
+                final int index = deviceIndex(query.get("deviceName"));
+                if (index < 0) {
+                    throw new HttpError(404, "Requested item wasn't found!");
+                }
+                return device(index);
+            }
+            return devicePage(query);
+        }
+
+        final String telemetry = "/api/plugins/telemetry/DEVICE/";
+        if (path.startsWith(telemetry)) {
+            final String rest = path.substring(telemetry.length());
+            final int slash = rest.indexOf('/');
+            if (slash < 0) {
+                throw new HttpError(404, "Not found");
+            }
+            deviceIndexOf(rest.substring(0, slash));
+
+            final String what = rest.substring(slash);
+            if ("/keys/timeseries".equals(what)) {
+                final StringBuilder sb = new StringBuilder("[");
+                for (int k = 0; k < keys; k++) {
+                    sb.append(k > 0 ? "," : "").append("\"key").append(k).append('"');
+                }
+                return sb.append(']').toString();
+            }
+            if ("/values/timeseries".equals(what)) {
+                return timeseries(query);
+            }
+        }
+
+        throw new HttpError(404, "Not found");
+    }
+
+    private String issueTokens() {
+        final long now = System.currentTimeMillis() / 1000;
+        final String token = jwt(now, now + tokenSeconds);
+        final String refresh = jwt(now, now + refreshTokenSeconds);
+        tokens.add(token);
+        refreshTokens.add(refresh);
+        return "{\"token\":\"" + token + "\",\"refreshToken\":\"" + refresh + "\"}";
+    }
+
+    /**
+     * @return an unsigned token the client can decode to find its issue and expiry times.
+     */
+    private static String jwt(final long issuedAt, final long expires) {
+        final Base64.Encoder b64 = Base64.getUrlEncoder().withoutPadding();
+        final String header = "{\"alg\":\"HS512\"}";
+        final String claims = "{\"sub\":\"" + username + "\",\"scopes\":[\"TENANT_ADMIN\"],\"userId\":\"" + UUID.randomUUID()
+            + "\",\"enabled\":true,\"isPublic\":false,\"tenantId\":\"" + tenantId + "\",\"iss\":\"thingsboard.io\",\"iat\":"
+            + issuedAt + ",\"exp\":" + expires + "}";
+        final byte[] signature = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+        return b64.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "." + b64.encodeToString(claims.getBytes(StandardCharsets.UTF_8))
+            + "." + b64.encodeToString(signature);
+    }
+
+    private static UUID deviceId(final int index) {
+        return new UUID(0xde71ceL, index);
+    }
+
+    private int deviceIndex(final String name) {
+        if (name != null && name.startsWith("device-")) {
+            try {
+                final int index = Integer.parseInt(name.substring(7));
+                if (index >= 0 && index < devices && deviceName(index).equals(name)) {
+                    return index;
+                }
+            } catch (final NumberFormatException e) {
+                // Not one of ours.
+            }
+        }
+        return -1;
+    }
+
+    private int deviceIndexOf(final String id) throws HttpError {
+        try {
+            final UUID uuid = UUID.fromString(id);
+            final long index = uuid.getLeastSignificantBits();
+            if (uuid.getMostSignificantBits() == 0xde71ceL && index >= 0 && index < devices) {
+                return (int)index;
+            }
+        } catch (final IllegalArgumentException e) {
+            // Reported below.
+        }
+        throw new HttpError(404, "Requested item wasn't found!");
+    }
+
+    private String device(final int index) {
+        return "{\"id\":{\"entityType\":\"DEVICE\",\"id\":\"" + deviceId(index) + "\"},\"createdTime\":" + (Synthetic.latestTs - readings * stepMs)
+            + ",\"additionalInfo\":null,\"tenantId\":{\"entityType\":\"TENANT\",\"id\":\"" + tenantId
+            + "\"},\"customerId\":{\"entityType\":\"CUSTOMER\",\"id\":\"13814000-1dd2-11b2-8080-808080808080\"},\"name\":\""
+            + deviceName(index) + "\",\"type\":\"default\",\"label\":null}";
+    }
+
+    /**
+     * A page of the tenant's devices in name order, after the name in textOffset.
+     */
+    private String devicePage(final Map<String, String> query) {
+        final int limit = Math.max(1, parseInt(query.get("limit"), 10));
+        final String type = query.getOrDefault("type", "");
+        final String textOffset = query.get("textOffset");
+        final String textSearch = query.getOrDefault("textSearch", "");
+
+        int first = 0;
+        if (textOffset != null && ! textOffset.isEmpty()) {
+            final int offset = deviceIndex(textOffset);
+            first = offset < 0 ? devices : offset + 1;
+        }
+        if ( ! type.isEmpty() && ! "default".equals(type)) {
+            first = devices;
+        }
+
+        final StringBuilder sb = new StringBuilder("{\"data\":[");
+        int count = 0;
+        int last = -1;
+        for (int i = first; i < devices && count < limit; i++) {
+            if ( ! deviceName(i).startsWith(textSearch)) {
+                continue;
+            }
+            sb.append(count > 0 ? "," : "").append(device(i));
+            count++;
+            last = i;
+        }
+
+        final boolean hasNext = last >= 0 && last + 1 < devices && count == limit;
+        sb.append("],\"nextPageLink\":");
+        if (hasNext) {
+            sb.append("{\"limit\":").append(limit).append(",\"textSearch\":").append(gson.toJson(textSearch.isEmpty() ? null : textSearch))
+              .append(",\"idOffset\":\"").append(deviceId(last)).append("\",\"textOffset\":\"").append(deviceName(last)).append("\"}");
+        } else {
+            sb.append("null");
+        }
+        return sb.append(",\"hasNext\":").append(hasNext).append('}').toString();
+    }
+
+    private String timeseries(final Map<String, String> query) throws HttpError {
+        final String[] names = query.getOrDefault("keys", "").split(",");
+        final boolean strict = "true".equals(query.get("useStrictDataTypes"));
+
+        final StringBuilder sb = new StringBuilder("{");
+        boolean firstKey = true;
+        for (final String name : names) {
+            final int k = keyIndex(name);
+            if (k < 0) {
+                continue;
+            }
+            sb.append(firstKey ? "" : ",").append('"').append(name).append("\":[");
+            firstKey = false;
+
+            if ( ! query.containsKey("startTs")) {
+                // The latest value.
+                appendReading(sb, Synthetic.latestTs, value(k, 0), k, strict);
+            } else {
+                final long startTs = parseLong(query.get("startTs"));
+                final long endTs = parseLong(query.get("endTs"));
+                final int limit = Math.max(1, parseInt(query.get("limit"), 100));
+                final String agg = query.getOrDefault("agg", "NONE");
+                final long interval = parseLong(query.getOrDefault("interval", "0"));
+                if ("NONE".equals(agg) || interval <= 0) {
+                    appendHistory(sb, k, startTs, endTs, limit, strict);
+                } else {
+                    appendAggregated(sb, k, startTs, endTs, interval, agg, limit, strict);
+                }
+            }
+            sb.append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    private int keyIndex(final String name) {
+        if (name.startsWith("key")) {
+            try {
+                final int k = Integer.parseInt(name.substring(3));
+                if (k >= 0 && k < keys) {
+                    return k;
+                }
+            } catch (final NumberFormatException e) {
+                // Not one of ours.
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The readings where startTs &lt; ts &lt;= endTs, latest first. Reading j is at latestTs - j * stepMs.
+     */
+    private void appendHistory(final StringBuilder sb, final int k, final long startTs, final long endTs, final int limit, final boolean strict) {
+        final long first = endTs >= Synthetic.latestTs ? 0 : Math.floorDiv(Synthetic.latestTs - endTs + stepMs - 1, stepMs);
+        final long end = startTs >= Synthetic.latestTs ? 0 : Math.min(readings, Math.floorDiv(Synthetic.latestTs - startTs - 1, stepMs) + 1);
+
+        int n = 0;
+        for (long j = first; j < end && n < limit; j++, n++) {
+            if (n > 0) {
+                sb.append(',');
+            }
+            appendReading(sb, Synthetic.latestTs - j * stepMs, value(k, j), k, strict);
+        }
+    }
+
+    /**
+     * Aggregates of the readings in windows of interval ms from startTs, each [start, end),
+     * with the timestamp of the middle of the window, latest window first. Text and boolean
+     * readings are aggregated as numbers.
+     */
+    private void appendAggregated(final StringBuilder sb, final int k, final long startTs, final long endTs, final long interval, final String agg, final int limit, final boolean strict) throws HttpError {
+        final long windows = Math.floorDiv(endTs - startTs + interval - 1, interval);
+        int n = 0;
+        for (long w = windows - 1; w >= 0 && n < limit; w--) {
+            final long ws = startTs + w * interval;
+            final long we = Math.min(ws + interval, endTs);
+
+            // Readings with ws <= ts < we.
+            final long first = we > Synthetic.latestTs ? 0 : Math.floorDiv(Synthetic.latestTs - we, stepMs) + 1;
+            final long last = ws > Synthetic.latestTs ? -1 : Math.min(readings - 1, Math.floorDiv(Synthetic.latestTs - ws, stepMs));
+            if (last < first) {
+                continue;
+            }
+
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (long j = first; j <= last; j++) {
+                final double v = value(k, j);
+                sum += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            final long count = last - first + 1;
+
+            final double v;
+            switch (agg) {
+                case "AVG":
+                    v = sum / count;
+                    break;
+                case "MIN":
+                    v = min;
+                    break;
+                case "MAX":
+                    v = max;
+                    break;
+                case "SUM":
+                    v = sum;
+                    break;
+                case "COUNT":
+                    v = count;
+                    break;
+                default:
+                    throw new HttpError(400, "Unknown aggregation " + agg);
+            }
+
+            if (n > 0) {
+                sb.append(',');
+            }
+            // Aggregates are longs for COUNT and for MIN, MAX and SUM of long keys, otherwise doubles.
+            final boolean isLong = "COUNT".equals(agg) || (k % 4 == 0 && ! "AVG".equals(agg));
+            sb.append("{\"ts\":").append(ws + (we - ws) / 2).append(",\"value\":");
+            final String text = isLong ? Long.toString((long)v) : Double.toString(v);
+            if (strict) {
+                sb.append(text);
+            } else {
+                sb.append('"').append(text).append('"');
+            }
+            sb.append('}');
+            n++;
+        }
+    }
+
+    /**
+     * @return the value of reading j of key k as a number, booleans are 0 or 1.
+     */
+    private static double value(final int k, final long j) {
+        final long h = ((j + k * 7919L) * 0x9E3779B97F4A7C15L) >>> 40;
+        switch (k % 4) {
+            case 0:
+                return h % 100000;
+            case 1:
+                return (h % 1000000) / 1000.0;
+            case 2:
+                return (h % 100000) / 100.0;
+            default:
+                return h & 1;
+        }
+    }
+
+    private static void appendReading(final StringBuilder sb, final long ts, final double v, final int k, final boolean strict) {
+        sb.append("{\"ts\":").append(ts).append(",\"value\":");
+        final String text;
+        switch (k % 4) {
+            case 0:
+                text = Long.toString((long)v);
+                break;
+            case 3:
+                text = v != 0 ? "true" : "false";
+                break;
+            default:
+                text = Double.toString(v);
+                break;
+        }
+
+        // Key 2 is a device that sends its numbers as strings, which stay strings either way.
+        if (strict && k % 4 != 2) {
+            sb.append(text);
+        } else {
+            sb.append('"').append(text).append('"');
+        }
+        sb.append('}');
+    }
+
+    private static long parseLong(final String s) throws HttpError {
+        try {
+            return Long.parseLong(s);
+        } catch (final NumberFormatException | NullPointerException e) {
+            throw new HttpError(400, "Invalid number " + s);
+        }
+    }
+
+    private static int parseInt(final String s, final int defaultValue) {
+        try {
+            return s == null ? defaultValue : Integer.parseInt(s);
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
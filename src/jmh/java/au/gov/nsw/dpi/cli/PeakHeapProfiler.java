@@ -0,0 +1,68 @@
+package au.gov.nsw.dpi.cli;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports the most heap used during each iteration, sampled every 10 ms.
+ *
+ * <p>The gc profiler reports the allocation rate, which shows how much garbage a path makes
+ * but not whether it holds a whole history in memory. The heap pools' own peak usage is per
+ * pool, so summing them overstates the peak, hence the sampling thread.</p>
+ *
+ * <p>Use with <code>-prof au.gov.nsw.dpi.cli.PeakHeapProfiler</code>.</p>
+ */
+public class PeakHeapProfiler implements InternalProfiler {
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private volatile boolean sampling;
+    private volatile long peak;
+    private Thread sampler;
+
+    @Override
+    public String getDescription() {
+        return "Peak heap used, sampled every 10 ms";
+    }
+
+    @Override
+    public void beforeIteration(final BenchmarkParams benchmarkParams, final IterationParams iterationParams) {
+        peak = memory.getHeapMemoryUsage().getUsed();
+        sampling = true;
+        sampler = new Thread(() -> {
+            while (sampling) {
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(10);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }, "peak-heap");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(final BenchmarkParams benchmarkParams, final IterationParams iterationParams, final IterationResult result) {
+        sampling = false;
+        try {
+            sampler.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+
+        return Collections.singletonList(new ScalarResult("heap.peak", peak / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX));
+    }
+}
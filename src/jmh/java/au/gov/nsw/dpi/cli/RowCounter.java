@@ -0,0 +1,23 @@
+package au.gov.nsw.dpi.cli;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the rows a benchmark handles so JMH reports rows per second alongside the
+ * operations, which are whole exports or reads of very different sizes.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class RowCounter {
+
+    public long rows;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        rows = 0;
+    }
+}
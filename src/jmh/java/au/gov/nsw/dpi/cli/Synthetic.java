@@ -0,0 +1,106 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.thingsboard.server.common.data.kv.BasicTsKvEntry;
+import org.thingsboard.server.common.data.kv.BooleanDataEntry;
+import org.thingsboard.server.common.data.kv.DoubleDataEntry;
+import org.thingsboard.server.common.data.kv.KvEntry;
+import org.thingsboard.server.common.data.kv.LongDataEntry;
+import org.thingsboard.server.common.data.kv.StringDataEntry;
+import org.thingsboard.server.common.data.kv.TsKvEntry;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Generates the timeseries of a key the way ThingsBoard returns them, for the benchmarks.
+ *
+ * <p>A key has a fixed number of readings one step apart, ending at a fixed latest time.
+ * Each page is made as {@link TsKvEntry} objects and converted to a {@link Series} exactly as
+ * the export's fetcher does, so the cost of the objects the RestClient would have made is
+ * part of every benchmark. The value of a reading only depends on its position so every run
+ * sees the same data.</p>
+ */
+final class Synthetic {
+
+    // 2021-01-01T00:00:00Z, the time of the latest reading.
+    static final long latestTs = 1609459200000L;
+
+    /**
+     * The type of the readings of a key.
+     */
+    enum Kind {
+        // Counters and raw sensor values.
+        LONG,
+        // Calibrated sensor values.
+        DOUBLE,
+        // Numbers sent as strings, which is what most devices do, with the odd status word.
+        TEXT,
+        BOOLEAN,
+        // A quarter of each of the above.
+        MIXED
+    }
+
+    private Synthetic() {
+    }
+
+    /**
+     * @param key the key name.
+     * @param kind the type of the readings.
+     * @param rows the number of readings.
+     * @param stepMs the time between readings.
+     * @return a fetcher that returns pages of the key's readings.
+     */
+    static TimeseriesPager.Fetcher fetcher(final String key, final Kind kind, final long rows, final long stepMs) {
+        return (startTs, endTs, limit) -> {
+            final List<TsKvEntry> tsl = page(key, kind, rows, stepMs, startTs, endTs, limit);
+            final Series page = new Series(key);
+            for (final TsKvEntry tskv : tsl) {
+                page.add(tskv);
+            }
+            return page;
+        };
+    }
+
+    /**
+     * @return the readings where startTs &lt; ts &lt;= endTs, latest first, at most limit of them.
+     */
+    static List<TsKvEntry> page(final String key, final Kind kind, final long rows, final long stepMs, final long startTs, final long endTs, final int limit) {
+        // Reading j is at latestTs - j * stepMs.
+        final long first = endTs >= latestTs ? 0 : Math.floorDiv(latestTs - endTs + stepMs - 1, stepMs);
+        final long end = startTs >= latestTs ? 0 : Math.min(rows, Math.floorDiv(latestTs - startTs - 1, stepMs) + 1);
+
+        final List<TsKvEntry> tsl = new ArrayList<>((int)Math.max(0, Math.min(limit, end - first)));
+        for (long j = first; j < end && tsl.size() < limit; j++) {
+            tsl.add(new BasicTsKvEntry(latestTs - j * stepMs, value(key, kind, j)));
+        }
+        return tsl;
+    }
+
+    /**
+     * @return the earliest timestamp of a key with the given number of readings.
+     */
+    static long earliestTs(final long rows, final long stepMs) {
+        return latestTs - (rows - 1) * stepMs;
+    }
+
+    private static KvEntry value(final String key, final Kind kind, final long j) {
+        // A cheap hash so the values are not a simple sequence.
+        final long h = (j * 0x9E3779B97F4A7C15L) >>> 40;
+
+        switch (kind == Kind.MIXED ? Kind.values()[(int)(j & 3)] : kind) {
+            case LONG:
+                return new LongDataEntry(key, h % 100000);
+            case DOUBLE:
+                return new DoubleDataEntry(key, (h % 1000000) / 1000.0);
+            case TEXT:
+                if (h % 50 == 0) {
+                    return new StringDataEntry(key, "OFFLINE");
+                }
+                return new StringDataEntry(key, Double.toString((h % 100000) / 100.0));
+            default:
+                return new BooleanDataEntry(key, (h & 1) != 0);
+        }
+    }
+}
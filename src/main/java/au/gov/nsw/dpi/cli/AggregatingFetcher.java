@@ -0,0 +1,209 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.thingsboard.server.common.data.kv.Aggregation;
+import org.thingsboard.server.common.data.kv.TsKvEntry;
+import org.thingsboard.server.common.data.page.TimePageLink;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Fetches pages of ThingsBoard's aggregates of a key, such as hourly averages, for a
+ * {@link TimeseriesPager}.
+ *
+ * <p>The readings where earliest &lt; ts &lt;= latest are divided into intervals on a grid
+ * of interval ms from the epoch, so hourly intervals start on the hour. The first and last
+ * intervals are cut short by the ends of the range. ThingsBoard gives each aggregate the
+ * timestamp of the middle of its interval and leaves out intervals without readings.</p>
+ *
+ * <p>An interval belongs to a page when its middle is in the page's range, so the pages and
+ * shards the pager asks for divide the intervals between them exactly. The intervals of a
+ * page are requested in windows of at most {@link #maxIntervals}, latest first, until there
+ * are enough aggregates to fill the page. Each window's request starts on a grid line so
+ * ThingsBoard's intervals line up with the grid. When a window has no readings at all, one
+ * request for the latest raw reading before it finds where the readings start again, rather
+ * than stepping through a long gap a window at a time.</p>
+ */
+final class AggregatingFetcher implements TimeseriesPager.Fetcher {
+
+    /**
+     * Makes a getTimeseries request for the key.
+     */
+    interface Query {
+        /**
+         * @return the entries of the key, aggregated unless agg is NONE.
+         * @throws Exception if the request fails.
+         */
+        List<TsKvEntry> get(long interval, Aggregation agg, TimePageLink pageLink) throws Exception;
+    }
+
+    // The most intervals aggregated by one request, to keep each request well within what
+    // ThingsBoard will aggregate at once.
+    static final int maxIntervals = 700;
+
+    private static final Comparator<TsKvEntry> latestFirst = Comparator.comparingLong(TsKvEntry::getTs).reversed();
+
+    private final String key;
+    private final Aggregation agg;
+    private final long interval;
+    private final Query query;
+
+    // The readings aggregated are those where origin <= ts < end.
+    private final long origin;
+    private final long end;
+
+    // The indexes of the first and last intervals on the grid.
+    private final long first;
+    private final long last;
+
+    /**
+     * @param key the key.
+     * @param agg the aggregation, not NONE.
+     * @param interval the length of an interval in ms.
+     * @param earliest the exclusive start of the range the pager will fetch.
+     * @param latest the inclusive end of the range the pager will fetch.
+     * @param query makes the requests.
+     */
+    AggregatingFetcher(final String key, final Aggregation agg, final long interval, final long earliest, final long latest, final Query query) {
+        this.key = key;
+        this.agg = agg;
+        this.interval = interval;
+        this.query = query;
+        origin = earliest + 1;
+        end = latest + 1;
+        first = Math.floorDiv(origin, interval);
+        last = Math.floorDiv(end - 1, interval);
+    }
+
+    /**
+     * Parse an interval such as 1h, 15m, 30s, 1d, 1w or a number of ms.
+     *
+     * @throws IllegalArgumentException if the interval cannot be parsed or is not positive.
+     */
+    static long parseInterval(final String s) {
+        final String t = s.trim().toLowerCase(Locale.ROOT);
+        int i = 0;
+        while (i < t.length() && Character.isDigit(t.charAt(i))) {
+            i++;
+        }
+        if (i == 0) {
+            throw new IllegalArgumentException("Invalid interval " + s + ", use a number followed by ms, s, m, h, d or w");
+        }
+
+        final long n = Long.parseLong(t.substring(0, i));
+        final long unit;
+        switch (t.substring(i).trim()) {
+            case "":
+            case "ms":
+                unit = 1;
+                break;
+            case "s":
+                unit = 1000;
+                break;
+            case "m":
+                unit = 60_000;
+                break;
+            case "h":
+                unit = 3_600_000;
+                break;
+            case "d":
+                unit = 86_400_000;
+                break;
+            case "w":
+                unit = 7 * 86_400_000L;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid interval " + s + ", use a number followed by ms, s, m, h, d or w");
+        }
+        if (n <= 0) {
+            throw new IllegalArgumentException("The interval must be greater than 0");
+        }
+        return Math.multiplyExact(n, unit);
+    }
+
+    @Override
+    public Series fetch(final long startTs, final long endTs, final int limit) throws Exception {
+        final Series page = new Series(key);
+
+        // The intervals whose middles are in the page's range.
+        final long lo = firstWithMiddleAfter(startTs);
+        long k = firstWithMiddleAfter(endTs) - 1;
+
+        final List<TsKvEntry> entries = new ArrayList<>();
+        while (k >= lo && entries.size() < limit) {
+            long a = Math.max(lo, k - maxIntervals + 1);
+            if (a == first && k > first && start(first) != first * interval) {
+                // A request starting off the grid would shift all its intervals.
+                a = first + 1;
+            }
+
+            final long ws = start(a);
+            final long we = stop(k);
+            final List<TsKvEntry> tsl = query.get(interval, agg, new TimePageLink((int)(k - a + 1), ws, we));
+
+            int added = 0;
+            if (tsl != null) {
+                for (final TsKvEntry tskv : tsl) {
+                    if (tskv.getTs() >= ws && tskv.getTs() < we) {
+                        entries.add(tskv);
+                        added++;
+                    }
+                }
+            }
+
+            if (added > 0 || a == lo) {
+                k = a - 1;
+                continue;
+            }
+
+            // Find the latest reading before the window. Raw requests return readings where
+            // startTs < ts <= endTs.
+            final List<TsKvEntry> before = query.get(0L, Aggregation.NONE, new TimePageLink(1, start(lo) - 1, ws - 1));
+            if (before == null || before.isEmpty()) {
+                break;
+            }
+            k = Math.min(a - 1, Math.floorDiv(before.get(0).getTs(), interval));
+        }
+
+        // Sort in case the aggregates do not come back in order.
+        entries.sort(latestFirst);
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            page.add(entries.get(i));
+        }
+        return page;
+    }
+
+    /**
+     * @return the index of the first interval whose middle is after ts, or last + 1 if there is none.
+     */
+    private long firstWithMiddleAfter(final long ts) {
+        long lo = first;
+        long hi = last + 1;
+        while (lo < hi) {
+            final long mid = lo + (hi - lo) / 2;
+            if (middle(mid) > ts) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private long start(final long k) {
+        return Math.max(k * interval, origin);
+    }
+
+    private long stop(final long k) {
+        return Math.min((k + 1) * interval, end);
+    }
+
+    private long middle(final long k) {
+        final long s = start(k);
+        return s + (stop(k) - s) / 2;
+    }
+}
@@ -0,0 +1,412 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampMilliTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Writes the timeseries of a device to an Arrow IPC file with a timestamp column and one
+ * typed column per key.
+ *
+ * <p>Rows are collected into record batches of a fixed number of rows and each batch is
+ * written as soon as it is full, so memory use depends on the batch size rather than the
+ * length of the history. A key without a reading at a row's timestamp is null in that row.</p>
+ *
+ * <p>The type of each key's column comes from the ThingsBoard data type of the readings in
+ * the first batch and of any pages given to {@link #sample} before it is written: booleans,
+ * longs, doubles if any reading is a double, or strings if any reading is text that is not a
+ * number. ThingsBoard usually sends numbers as text, which says nothing about whether the
+ * readings still to come are whole numbers, so numbers received as text are always doubles
+ * and only readings ThingsBoard typed as longs make a long column. A key without readings is
+ * a double column. The schema cannot change once the first batch is written, so a later
+ * reading that does not fit its column, such as text in a double column, is written as null
+ * and counted in a warning when the file is closed.</p>
+ *
+ * <p>A writer is not thread-safe.</p>
+ */
+final class ArrowTimeseriesWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArrowTimeseriesWriter.class);
+
+    private final Path file;
+    private final List<String> keys;
+    private final int batchRows;
+
+    // The staged rows of the batch being collected. A type of 0 means the key has no reading.
+    private final long[] timestamps;
+    private final byte[][] types;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final String[][] strings;
+    private int rows = 0;
+
+    // The kinds of reading seen of each key before the first batch is written, see kind().
+    private final int[] kinds;
+
+    // The column types, chosen when the first batch is written.
+    private byte[] columnTypes = null;
+    private final long[] dropped;
+
+    private BufferAllocator allocator = null;
+    private VectorSchemaRoot root = null;
+    private FileChannel channel = null;
+    private ArrowFileWriter writer = null;
+
+    /**
+     * @param file the file to write, which is created or truncated when the first batch is written.
+     * @param keys the keys, in column order.
+     * @param batchRows the number of rows in each record batch.
+     */
+    ArrowTimeseriesWriter(final Path file, final List<String> keys, final int batchRows) {
+        this.file = file;
+        this.keys = keys;
+        this.batchRows = Math.max(1, batchRows);
+
+        timestamps = new long[this.batchRows];
+        types = new byte[keys.size()][this.batchRows];
+        longs = new long[keys.size()][this.batchRows];
+        doubles = new double[keys.size()][this.batchRows];
+        strings = new String[keys.size()][];
+        kinds = new int[keys.size()];
+        dropped = new long[keys.size()];
+    }
+
+    /**
+     * Take the readings of a key into account when choosing the type of its column, such as
+     * the first page of a key that has no readings in the first batch. Pages given after the
+     * first batch is written are ignored.
+     *
+     * @param column the index of the key.
+     * @param page readings of the key.
+     */
+    void sample(final int column, final Series page) {
+        if (columnTypes != null) {
+            return;
+        }
+        for (int i = 0; i < page.size(); i++) {
+            if ( ! page.isBlank(i)) {
+                kinds[column] |= kind(page, i);
+            }
+        }
+    }
+
+    /**
+     * Start a new row, writing the current batch if it is full.
+     *
+     * @param ts the timestamp of the row.
+     * @throws IOException if the batch cannot be written.
+     */
+    void startRow(final long ts) throws IOException {
+        if (rows == batchRows) {
+            writeBatch();
+        }
+        timestamps[rows] = ts;
+        for (final byte[] t : types) {
+            t[rows] = 0;
+        }
+        rows++;
+    }
+
+    /**
+     * Set the value of a key in the current row.
+     *
+     * @param column the index of the key.
+     * @param page the page holding the reading.
+     * @param position the position of the reading in the page.
+     */
+    void set(final int column, final Series page, final int position) {
+        final int row = rows - 1;
+        final byte type = page.type(position);
+        types[column][row] = type;
+        if (columnTypes == null) {
+            kinds[column] |= kind(page, position);
+        }
+        switch (type) {
+            case Series.DOUBLE:
+                doubles[column][row] = page.doubleValue(position);
+                break;
+            case Series.LONG:
+            case Series.BOOLEAN:
+                longs[column][row] = page.longValue(position);
+                break;
+            default:
+                if (strings[column] == null) {
+                    strings[column] = new String[batchRows];
+                }
+                strings[column][row] = page.valueAsString(position);
+                break;
+        }
+    }
+
+    /**
+     * Write the rows collected so far and finish the file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writer == null || rows > 0) {
+                writeBatch();
+            }
+            writer.end();
+
+            for (int c = 0; c < dropped.length; c++) {
+                if (dropped[c] > 0) {
+                    logger.warn("{} readings of {} did not fit its {} column in {} and were written as null", dropped[c], keys.get(c), typeName(columnTypes[c]), file);
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+            if (root != null) {
+                root.close();
+            }
+            if (allocator != null) {
+                allocator.close();
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (writer == null) {
+            start();
+        }
+
+        root.allocateNew();
+
+        final TimeStampMilliTZVector tsVector = (TimeStampMilliTZVector)root.getVector(0);
+        for (int r = 0; r < rows; r++) {
+            tsVector.setSafe(r, timestamps[r]);
+        }
+        tsVector.setValueCount(rows);
+
+        for (int c = 0; c < keys.size(); c++) {
+            switch (columnTypes[c]) {
+                case Series.BOOLEAN:
+                    fillBoolean(c, (BitVector)root.getVector(c + 1));
+                    break;
+                case Series.LONG:
+                    fillLong(c, (BigIntVector)root.getVector(c + 1));
+                    break;
+                case Series.DOUBLE:
+                    fillDouble(c, (Float8Vector)root.getVector(c + 1));
+                    break;
+                default:
+                    fillString(c, (VarCharVector)root.getVector(c + 1));
+                    break;
+            }
+            root.getVector(c + 1).setValueCount(rows);
+        }
+
+        root.setRowCount(rows);
+        writer.writeBatch();
+        rows = 0;
+        for (final String[] s : strings) {
+            if (s != null) {
+                Arrays.fill(s, null);
+            }
+        }
+    }
+
+    /**
+     * Choose the column types from the first batch and open the file.
+     */
+    private void start() throws IOException {
+        columnTypes = new byte[keys.size()];
+        final List<Field> fields = new ArrayList<>(keys.size() + 1);
+        fields.add(new Field("ts", new FieldType(false, new ArrowType.Timestamp(TimeUnit.MILLISECOND, "UTC"), null), null));
+
+        for (int c = 0; c < keys.size(); c++) {
+            final boolean booleans = (kinds[c] & booleanKind) != 0;
+            final boolean integers = (kinds[c] & longKind) != 0;
+            final boolean fractions = (kinds[c] & doubleKind) != 0;
+            final boolean numberText = (kinds[c] & numberTextKind) != 0;
+            final boolean text = (kinds[c] & stringKind) != 0;
+
+            final ArrowType type;
+            if (text || (booleans && (integers || fractions))) {
+                columnTypes[c] = Series.STRING;
+                type = ArrowType.Utf8.INSTANCE;
+            } else if (fractions || numberText || ! (booleans || integers)) {
+                columnTypes[c] = Series.DOUBLE;
+                type = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+            } else if (integers) {
+                columnTypes[c] = Series.LONG;
+                type = new ArrowType.Int(64, true);
+            } else {
+                columnTypes[c] = Series.BOOLEAN;
+                type = ArrowType.Bool.INSTANCE;
+            }
+            fields.add(new Field(keys.get(c), new FieldType(true, type, null), null));
+        }
+
+        allocator = new RootAllocator(Long.MAX_VALUE);
+        root = VectorSchemaRoot.create(new Schema(fields), allocator);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writer = new ArrowFileWriter(root, null, channel);
+        writer.start();
+    }
+
+    private void fillBoolean(final int c, final BitVector v) {
+        for (int r = 0; r < rows; r++) {
+            switch (types[c][r]) {
+                case 0:
+                    break;
+                case Series.BOOLEAN:
+                case Series.LONG:
+                    v.setSafe(r, longs[c][r] != 0 ? 1 : 0);
+                    break;
+                case Series.DOUBLE:
+                    v.setSafe(r, doubles[c][r] != 0.0 ? 1 : 0);
+                    break;
+                default:
+                    if ("true".equalsIgnoreCase(strings[c][r]) || "false".equalsIgnoreCase(strings[c][r])) {
+                        v.setSafe(r, Boolean.parseBoolean(strings[c][r]) ? 1 : 0);
+                    } else {
+                        dropped[c]++;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void fillLong(final int c, final BigIntVector v) {
+        for (int r = 0; r < rows; r++) {
+            switch (types[c][r]) {
+                case 0:
+                    break;
+                case Series.BOOLEAN:
+                case Series.LONG:
+                    v.setSafe(r, longs[c][r]);
+                    break;
+                case Series.DOUBLE:
+                    final double d = doubles[c][r];
+                    if (d == Math.rint(d) && Math.abs(d) < 0x1p63) {
+                        v.setSafe(r, (long)d);
+                    } else {
+                        dropped[c]++;
+                    }
+                    break;
+                default:
+                    try {
+                        v.setSafe(r, Long.parseLong(strings[c][r].trim()));
+                    } catch (final NumberFormatException e) {
+                        dropped[c]++;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void fillDouble(final int c, final Float8Vector v) {
+        for (int r = 0; r < rows; r++) {
+            switch (types[c][r]) {
+                case 0:
+                    break;
+                case Series.BOOLEAN:
+                case Series.LONG:
+                    v.setSafe(r, (double)longs[c][r]);
+                    break;
+                case Series.DOUBLE:
+                    v.setSafe(r, doubles[c][r]);
+                    break;
+                default:
+                    try {
+                        v.setSafe(r, Double.parseDouble(strings[c][r].trim()));
+                    } catch (final NumberFormatException e) {
+                        dropped[c]++;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void fillString(final int c, final VarCharVector v) {
+        for (int r = 0; r < rows; r++) {
+            final String s;
+            switch (types[c][r]) {
+                case 0:
+                    continue;
+                case Series.BOOLEAN:
+                    s = Boolean.toString(longs[c][r] != 0);
+                    break;
+                case Series.LONG:
+                    s = Long.toString(longs[c][r]);
+                    break;
+                case Series.DOUBLE:
+                    s = Double.toString(doubles[c][r]);
+                    break;
+                default:
+                    s = strings[c][r];
+                    break;
+            }
+            v.setSafe(r, s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // The bits of kind().
+    private static final int booleanKind = 1;
+    private static final int longKind = 2;
+    private static final int doubleKind = 4;
+    private static final int stringKind = 8;
+    private static final int numberTextKind = 16;
+
+    /**
+     * @return the bits for the reading's type and, for a number, whether it was received as text.
+     */
+    private static int kind(final Series page, final int position) {
+        switch (page.type(position)) {
+            case Series.BOOLEAN:
+                return booleanKind;
+            case Series.LONG:
+                return longKind | (page.isText(position) ? numberTextKind : 0);
+            case Series.DOUBLE:
+                return doubleKind | (page.isText(position) ? numberTextKind : 0);
+            default:
+                return stringKind;
+        }
+    }
+
+    private static String typeName(final byte type) {
+        switch (type) {
+            case Series.BOOLEAN:
+                return "boolean";
+            case Series.LONG:
+                return "long";
+            case Series.DOUBLE:
+                return "double";
+            default:
+                return "string";
+        }
+    }
+}
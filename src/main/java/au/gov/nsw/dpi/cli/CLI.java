@@ -1,24 +1,37 @@
 package au.gov.nsw.dpi.cli;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -33,11 +46,9 @@ import org.thingsboard.server.common.data.page.TimePageLink;
 
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
-import com.ubidots.ApiClient;
-import com.ubidots.DataSource;
-import com.ubidots.Variable;
 
 import au.gov.nsw.dpi.model.DeviceInfo;
+import au.gov.nsw.dpi.model.Series;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -51,16 +62,84 @@ public class CLI implements Callable<Integer> {
     private static final Logger logger = LoggerFactory.getLogger(CLI.class);
 
     private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final SimpleDateFormat csvHrFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss XX");
 
-    // ThingsBoard REST client library.
+    // Used for debug logging from the export threads, in the same timezone as sdf.
+    private static final DateTimeFormatter logFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(TimeZone.getTimeZone("AEST").toZoneId());
+
+    // ThingsBoard REST client library. A single logged-in instance is shared by all export
+    // worker threads; the underlying RestTemplate is thread-safe.
     private static RestClient rc = null;
 
+    // The number of times a batch of values is sent to Ubidots before the migration of the
+    // variable is abandoned.
+    private static final int uploadAttempts = 5;
+
+    // Page size for ThingsBoard timeseries requests.
+    private static final int pageLimit = 10000;
+
+    // Fetches shards of a timeseries range concurrently when --shards is greater than 1.
+    private static final ExecutorService shardPool = Executors.newCachedThreadPool(daemonThreads("shard-fetch"));
+
+    // Exports the keys of a device concurrently when --key-parallelism is greater than 1.
+    private ExecutorService keyPool = null;
+
+    // Limits the rate and number of concurrent ThingsBoard requests across all devices, keys and shards.
+    private RequestLimiter tbRequests;
+
+    private TimeseriesPager pager;
+
+    // The compression of the exported files, from --compress.
+    private Compression compression = Compression.NONE;
+
+    // The aggregation and the interval length in ms from --agg and --interval, null when
+    // exporting the readings themselves.
+    private Aggregation aggregation = null;
+    private long aggregationInterval;
+
+    // Limits the rate of Ubidots API calls across all migration threads.
+    private UbidotsScheduler ubidots;
+
+    // Finds Ubidots devices and variables by name, once per run.
+    private UbidotsCatalog ubidotsCatalog;
+
+    // Uploads the variables of all the devices being migrated, --max-uploads at a time.
+    private ExecutorService uploadPool = null;
+
+    // Request latencies, row counts and queue depths of the run.
+    private final Metrics metrics = new Metrics();
+
     // 1970 epoch representation of the first and last times we want messages from, in milliseconds.
-    // These will be zero if not set using --to and --from.
+    // These will be zero if not set using --to and --from. They are only written while parsing
+    // the command line and are read-only once devices are being exported.
     private long from;
     private long to;
 
+    private static ThreadFactory daemonThreads(final String name) {
+        return r -> {
+            final Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @return the number of tasks waiting to run in the pool.
+     */
+    private static long queued(final ExecutorService pool) {
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)pool).getQueue().size() : 0;
+    }
+
+    /**
+     * @return the number of threads of the pool running tasks.
+     */
+    private static long active(final ExecutorService pool) {
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)pool).getActiveCount() : 0;
+    }
+
+    private static String formatTs(final long ts) {
+        return logFormat.format(Instant.ofEpochMilli(ts));
+    }
+
     /**
      * Replace anything except alpha-numeric characters and underscores with an underscore. Collapse multiple underscores to a single character. Remove trailing underscores.
      *
@@ -142,6 +221,25 @@ public class CLI implements Callable<Integer> {
         }
     }
 
+    /**
+     * Read the device summary JSON file written by an earlier export.
+     *
+     * @param devInfo a {@link DeviceInfo} object with at least the readingsPrefix set.
+     * @return the {@link DeviceInfo} read from the file, or null if there is no summary file.
+     * @throws Exception if there is an error reading the file.
+     */
+    private DeviceInfo readDeviceSummary(final DeviceInfo devInfo) throws Exception {
+        final Path inputName = getDeviceDirectory(devInfo).resolve(devInfo.readingsPrefix + ".json");
+        if ( ! Files.isRegularFile(inputName)) {
+            return null;
+        }
+
+        final Gson gson = new Gson();
+        try (Reader reader = Files.newBufferedReader(inputName, StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, DeviceInfo.class);
+        }
+    }
+
     /**
      * Write a summary info file and timeseries CSV or JSON files for the given device.
      *
@@ -161,7 +259,7 @@ public class CLI implements Callable<Integer> {
             }
         } else {
             // Export all timeseries keys if no list of keys was provided.
-            timeseriesKeys = rc.getTimeseriesKeys(device.getId());
+            timeseriesKeys = tbRequests.call("getTimeseriesKeys", () -> rc.getTimeseriesKeys(device.getId()));
         }
 
         // Set the DeviceInfo to and from to values that ensure they will be out of normal
@@ -169,17 +267,41 @@ public class CLI implements Callable<Integer> {
         devInfo.setFrom(Long.MAX_VALUE);
         devInfo.setTo(0);
 
-        // Move from back by 1 ms because the ThingsBoard query seems to be > from, not >= from.
-        if (from > 0) {
-            from--;
-        }
+        // Devices may be exported concurrently so the query window is calculated into locals
+        // rather than adjusting the from and to fields.
 
-        if (to < 1) {
-            to = Long.MAX_VALUE;
-        }
+        // Move from back by 1 ms because the ThingsBoard query seems to be > from, not >= from.
+        final long earliest = from > 0 ? from - 1 : from;
+        // Aggregated intervals are laid out up to the latest time, so without --to it is now.
+        final long latest = Math.min(to < 1 ? Long.MAX_VALUE : to, aggregation != null ? System.currentTimeMillis() : Long.MAX_VALUE);
 
         if ( ! infoOnly) {
             createDeviceSummaryDirectory(devInfo);
+            devInfo.format = arrow ? "arrow" : jsonTs ? "json" : wide ? "wide" : "csv";
+            devInfo.order = ascending ? "ascending" : "descending";
+        }
+
+        if (incremental && ! infoOnly) {
+            // Carry the summary of the earlier exports forward. The lastExported timestamps
+            // tell the export methods where to start each key.
+            final DeviceInfo previous = readDeviceSummary(devInfo);
+            if (previous != null) {
+                // New entries go at the end of an ascending file and the start of a descending
+                // one, so adding to files written with other options would put them out of order.
+                // Summaries written before the format was recorded are taken on trust.
+                if ( ! previous.format.isEmpty() && ! (previous.format.equals(devInfo.format) && previous.order.equals(devInfo.order))) {
+                    throw new IOException(String.format("Cannot add to the %s %s files of device %s, this run would write %s %s files."
+                        + " Use the same -a, -j and --wide options as the earlier export, or export the device again without --incremental",
+                        previous.order, previous.format, device.getName(), devInfo.order, devInfo.format));
+                }
+
+                devInfo.fieldToFilename.putAll(previous.fieldToFilename);
+                devInfo.lastExported.putAll(previous.lastExported);
+                if (previous.getTo() > 0) {
+                    devInfo.setFrom(previous.getFrom());
+                    devInfo.setTo(previous.getTo());
+                }
+            }
         }
 
         if (infoOnly) {
@@ -187,7 +309,7 @@ public class CLI implements Callable<Integer> {
             // most recent message time. Leave the earliest message time undefined because
             // that requires fetching every message. The device creation time cannot be used
             // because it seems to be unreliable.
-            final List<TsKvEntry> tsl = rc.getLatestTimeseries(device.getId(), timeseriesKeys);
+            final List<TsKvEntry> tsl = tbRequests.call("getLatestTimeseries", () -> rc.getLatestTimeseries(device.getId(), timeseriesKeys));
             if (tsl != null) {
                 // Check all key entries in case they don't all share the same timestamp.
                 tsl.stream().forEach(tskv -> {
@@ -198,11 +320,35 @@ public class CLI implements Callable<Integer> {
                 });
             }
         } else {
-            if (jsonTs) {
-                exportToJSON(device, devInfo, timeseriesKeys, from, to);
+            if (arrow) {
+                exportToArrow(device, devInfo, timeseriesKeys, earliest, latest);
+            } else if (jsonTs) {
+                exportToJSON(device, devInfo, timeseriesKeys, earliest, latest);
+            } else if (wide) {
+                exportToWideCSV(device, devInfo, timeseriesKeys, earliest, latest);
             } else {
-                for (final String k : timeseriesKeys) {
-                    exportKeyToCSV(device, devInfo, k, from, to);
+                // Sharded and aggregated fetches page through one key at a time, otherwise the
+                // keys are fetched in groups of --keys-per-request with one request per page.
+                final int groupSize = shards > 1 || aggregation != null ? 1 : Math.max(1, keysPerRequest);
+                final List<List<String>> groups = new ArrayList<>();
+                for (int i = 0; i < timeseriesKeys.size(); i += groupSize) {
+                    groups.add(timeseriesKeys.subList(i, Math.min(i + groupSize, timeseriesKeys.size())));
+                }
+
+                if (keyPool == null) {
+                    for (final List<String> g : groups) {
+                        exportKeyGroupToCSV(device, devInfo, g, earliest, latest);
+                    }
+                } else {
+                    // Each group is written by a single task, the DeviceInfo methods the tasks
+                    // use are synchronized.
+                    final List<Future<?>> keyExports = new ArrayList<>(groups.size());
+                    for (final List<String> g : groups) {
+                        keyExports.add(keyPool.submit(() -> exportKeyGroupToCSV(device, devInfo, g, earliest, latest)));
+                    }
+                    for (final Future<?> f : keyExports) {
+                        f.get();
+                    }
                 }
             }
         }
@@ -211,81 +357,177 @@ public class CLI implements Callable<Integer> {
     }
 
     /**
-     * Retrieve all timeseries values for the given keys and date range.
-     *
-     * @param device the device of interest.
-     * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
-     * @param keys a list of timeseries keys to export.
-     * @param earliest the earliest timestamp to export.
-     * @param latest the latest timestamp to export.
+     * Find and export each device in deviceNamesList. Up to parallelism devices are looked up
+     * and exported at the same time, sharing the logged-in RestClient.
      *
-     * @return all timeseries values for the given keys and date range.
+     * @throws Exception if the export threads are interrupted.
      */
-    private Map<Long, List<TsKvEntry>> getTimeseriesEntries(final Device device, final DeviceInfo devInfo, final List<String> keys, final long earliest, final long latest) {
-        final int limit = 10000;
+    private void exportDevices() throws Exception {
+        final ExecutorService es = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, deviceNamesList.size())));
+        for (final String n : deviceNamesList) {
+            es.submit(() -> {
+                try {
+                    final Optional<Device> dev = tbRequests.call("findDevice", () -> rc.findDevice(n));
+                    if (dev.isPresent()) {
+                        exportDevice(dev.get());
+                    } else {
+                        logger.warn("Device {} not found", n);
+                    }
+                } catch (final Exception e) {
+                    logger.error("Failed to export device {}", n, e);
+                }
+            });
+        }
 
-        long end = latest;
+        es.shutdown();
+        while ( ! es.isTerminated()) {
+            es.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
 
-        final Map<Long, List<TsKvEntry>> tsMap = new HashMap<>();
+    /**
+     * Write an inventory of the tenant's devices to fleet.csv in the output directory and log
+     * a summary of how recently they were last seen. The devices are listed a page at a time
+     * and scanned concurrently by a {@link FleetScanner}, as many at a time as --max-requests
+     * or --parallelism allows. If device names were given only those devices are scanned.
+     *
+     * @throws Exception if the devices cannot be listed or the file cannot be written.
+     */
+    private void scanFleet() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.max(parallelism, maxRequests)), daemonThreads("fleet-scan"));
+        metrics.gauge("fleet.devicesQueued", () -> queued(pool));
+        try {
+            final FleetScanner scanner = new FleetScanner(rc, tbRequests, pool, keyNames != null && keyNames.length > 0 ? Arrays.asList(keyNames) : null, from > 0 ? from - 1 : from);
+
+            List<Device> devices = scanner.listDevices();
+            logger.info("Found {} devices", devices.size());
+            if ( ! deviceNamesList.isEmpty()) {
+                final Set<String> names = new HashSet<>(deviceNamesList);
+                devices = devices.stream().filter(d -> names.remove(d.getName())).collect(Collectors.toList());
+                for (final String n : names) {
+                    logger.warn("Device {} not found", n);
+                }
+            }
 
-        while (true) {
-            logger.debug("Looking for messages between {} and {}", sdf.format(new Date(earliest)), sdf.format(new Date(end)));
+            final List<FleetScanner.DeviceSummary> summaries = scanner.scan(devices);
+            for (final FleetScanner.DeviceSummary s : summaries) {
+                metrics.rows(s.device.getName(), "fleet", 1, 0);
+            }
 
-            final TimePageLink pageLink = new TimePageLink(limit, earliest, end);
-            final List<TsKvEntry> tsl = rc.getTimeseries(device.getId(), keys, 0L, Aggregation.NONE, pageLink);
+            Files.createDirectories(dir);
+            FleetScanner.write(dir.resolve("fleet.csv"), summaries, humanReadableDates);
+            logger.info("Fleet: {}", FleetScanner.health(summaries, System.currentTimeMillis()));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            // getTimeseries returns results with the latest reading at the head of the list - element 0, and the earliest
-            // reading at the tail, ie size() - 1.
-            final int sz = tsl.size();
-            logger.debug("Received {} messages", sz);
+    /**
+     * Migrate each device in deviceNamesList to Ubidots. Up to parallelism devices are read and
+     * have their Ubidots device and variables looked up at the same time, and the uploads of
+     * their variables share the upload pool.
+     *
+     * @throws Exception if the migration threads are interrupted.
+     */
+    private void migrateDevices() throws Exception {
+        final ExecutorService es = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, deviceNamesList.size())));
+        for (final String n : deviceNamesList) {
+            es.submit(() -> {
+                try {
+                    if (jsonTs) {
+                        migrateDevice(n.trim(), valuesFile);
+                    } else {
+                        // Read from the device info JSON, CSV timeseries files.
+                        // Don't trim this name?
+                        migrateDevice(n);
+                    }
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
 
-            if (sz > 0) {
-                final long ts1 = tsl.get(0).getTs(); // End of window - latest date
-                final long ts2 = tsl.get(sz-1).getTs(); // Start of window - earliest date
+        es.shutdown();
+        while ( ! es.isTerminated()) {
+            es.awaitTermination(1, TimeUnit.MINUTES);
+        }
 
-                logger.debug("Date range of messages is {} to {}", sdf.format(new Date(ts2)), sdf.format(new Date(ts1)));
+        ubidotsCatalog.save();
+    }
 
-                if (ts1 > devInfo.getTo()) {
-                    devInfo.setTo(ts1);
-                }
+    /**
+     * Fetch the pages of timeseries entries for the given key and date range, latest page first.
+     * The pages may be fetched concurrently depending on the --shards option but are passed to
+     * the handler in order on the calling thread.
+     *
+     * @param device the device of interest.
+     * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
+     * @param key the timeseries key to fetch.
+     * @param earliest the earliest timestamp to fetch.
+     * @param latest the latest timestamp to fetch.
+     * @param handler receives each page of entries.
+     * @throws Exception if there is an error reading from ThingsBoard or the handler throws an exception.
+     */
+    private void fetchTimeseries(final Device device, final DeviceInfo devInfo, final String key, final long earliest, final long latest, final TimeseriesPager.PageHandler handler) throws Exception {
+        pager.fetch(earliest, latest, timeseriesFetcher(device, devInfo, key, earliest, latest), handler);
+    }
 
-                if (ts2 < devInfo.getFrom()) {
-                    devInfo.setFrom(ts2);
-                }
+    /**
+     * Create a {@link TimeseriesPager.Fetcher} that reads pages of the given key from ThingsBoard,
+     * or of its aggregates when --agg is given. Each page is converted to a compact
+     * {@link Series} as soon as it is received. The fetcher may be called from shard threads.
+     *
+     * @param device the device of interest.
+     * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
+     * @param key the timeseries key to fetch.
+     * @param earliest the exclusive start of the range the pager will fetch.
+     * @param latest the inclusive end of the range the pager will fetch.
+     * @return the fetcher.
+     */
+    private TimeseriesPager.Fetcher timeseriesFetcher(final Device device, final DeviceInfo devInfo, final String key, final long earliest, final long latest) {
+        final List<String> keys = Collections.singletonList(key);
+        final TimeseriesPager.Fetcher aggregates = aggregation == null ? null : new AggregatingFetcher(key, aggregation, aggregationInterval, earliest, latest,
+            (interval, agg, pageLink) -> tbRequests.call("getTimeseries", () -> rc.getTimeseries(device.getId(), keys, interval, agg, pageLink)));
 
-                for (final TsKvEntry tskv : tsl) {
-                    if (StringUtils.isEmpty(tskv.getValueAsString())) {
-                        continue;
-                    }
+        return (startTs, endTs, limit) -> {
+            logger.debug("Looking for messages between {} and {}", formatTs(startTs), formatTs(endTs));
 
-                    final List<TsKvEntry> values;
-                    if (tsMap.containsKey(tskv.getTs())) {
-                        values = tsMap.get(tskv.getTs());
-                    } else {
-                        values = new ArrayList<>();
-                        tsMap.put(tskv.getTs(), values);
-                    }
+            final Series page;
+            if (aggregates != null) {
+                page = aggregates.fetch(startTs, endTs, limit);
+            } else {
+                final TimePageLink pageLink = new TimePageLink(limit, startTs, endTs);
+                final List<TsKvEntry> tsl = tbRequests.call("getTimeseries", () -> rc.getTimeseries(device.getId(), keys, 0L, Aggregation.NONE, pageLink));
+                logger.debug("Received {} messages", tsl.size());
 
-                    values.add(tskv);
+                // getTimeseries returns results with the latest reading at the head of the list - element 0, and the earliest
+                // reading at the tail, ie size() - 1.
+                page = new Series(key);
+                for (final TsKvEntry tskv : tsl) {
+                    page.add(tskv);
                 }
-
-                // Don't start on the same reading in the next batch.
-                end = ts2 - 1;
             }
 
-            // Less than a full set of readings means we now have the earliest reading
-            // and can finish up for this field.
-            if (sz < limit) {
-                break;
+            if ( ! page.isEmpty()) {
+                final long ts1 = page.ts(0); // End of window - latest date
+                final long ts2 = page.ts(page.size() - 1); // Start of window - earliest date
+
+                logger.debug("Date range of messages is {} to {}", formatTs(ts2), formatTs(ts1));
+                devInfo.extendRange(ts2, ts1);
             }
-        }
 
-        return tsMap;
+            return page;
+        };
     }
 
     /**
      * Export a set of keys in a format suitable to push to ThingsBoard via the API.
      *
+     * <p>The pages of each key are fetched separately and merged by timestamp with a
+     * {@link TimeseriesMerger}, so each JSON object is written as soon as every key has moved
+     * past its timestamp. When the ascending flag is set the objects are written to a
+     * {@link ReverseSpool} in batches and copied to the file last batch first.</p>
+     *
      * @param device the device of interest.
      * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
      * @param keys a list of timeseries keys to export.
@@ -293,151 +535,539 @@ public class CLI implements Callable<Integer> {
      * @param latest the latest timestamp to export.
      */
     private void exportToJSON(final Device device, final DeviceInfo devInfo, final List<String> keys, final long earliest, final long latest) {
+        Path target = null;
         try {
-            final Path outputName = getDeviceDirectory(devInfo).resolve("timeseries.json");
-            final BufferedWriter br = infoOnly ? null : Files.newBufferedWriter(outputName, StandardCharsets.UTF_8);
-
-            final Map<Long, List<TsKvEntry>> tsMap = getTimeseriesEntries(device, devInfo, keys, earliest, latest);
-            if (tsMap.size() > 0) {
-                // A set of longs will get naturally sorted from smallest to largest, ie
-                // earliest timestamp to latest.
-                final List<Long> timestamps = tsMap.keySet().stream().sorted().collect(Collectors.toList());
-                if ( ! ascending) {
-                    // So if the ascending flag is not set this natural order must be reversed.
-                    Collections.reverse(timestamps);
-                }
+            final Path outputName = getDeviceDirectory(devInfo).resolve("timeseries.json" + compression.extension());
+
+            // Only add to the existing file if every key has been exported before, otherwise the
+            // whole file is rewritten. The earliest of the keys' lastExported timestamps is where
+            // the new entries start.
+            long start = Long.MAX_VALUE;
+            for (final String k : keys) {
+                final Long lastExported = devInfo.lastExported.get(k);
+                start = lastExported == null ? Long.MIN_VALUE : Math.min(start, lastExported);
+            }
+            final boolean append = incremental && start != Long.MIN_VALUE && Files.exists(outputName);
+            target = append ? Files.createTempFile(outputName.getParent(), "timeseries", ".tmp") : outputName;
+            final long fetchFrom = append ? Math.max(earliest, start) : earliest;
 
-                br.write("[\n");
-                boolean firstTs = true;
-                for (final long ts : timestamps) {
-                    if ( ! firstTs) {
-                        br.write(",\n");
-                    }
-                    firstTs = false;
-
-                    final List<TsKvEntry> values = tsMap.get(ts);
-                    if (values.size() > 0) {
-                        br.write("{\n");
-                        br.write(String.format("    \"ts\": %d,\n    \"values\": {\n", ts));
-                        boolean firstValue = true;
-                        for (final TsKvEntry entry : values) {
-                            if ( ! firstValue) {
-                                br.write(",\n");
-                            }
-                            firstValue = false;
-                            br.write(String.format("        \"%s\": %s", entry.getKey(), entry.getValueAsString()));
-                        }
-                        br.write("}}\n");
-                    }
-                }
-                br.write("]\n");
+            // Entries at or before these times were written by an earlier incremental export.
+            final JsonRowWriter rows = new JsonRowWriter(keys.size(), new HashMap<>(devInfo.lastExported), pageLimit);
+
+            final List<TimeseriesPager.Pages> sources = new ArrayList<>(keys.size());
+            for (final String k : keys) {
+                sources.add(pager.open(fetchFrom, latest, timeseriesFetcher(device, devInfo, k, fetchFrom, latest)));
+            }
+
+            try (TimeseriesMerger merger = new TimeseriesMerger(sources);
+                 BufferedWriter br = compression.newWriter(target);
+                 ReverseSpool spool = ascending ? new ReverseSpool(outputName.getParent()) : null) {
+                rows.write(merger, br, spool);
+            }
+
+            // The readings written of each key, for the metrics.
+            final long[] written = new long[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                written[i] = rows.written(i);
             }
+            recordWritten(device, keys, written, outputName, target);
 
-            br.flush();
-            br.close();
+            if (append) {
+                IncrementalFiles.merge(outputName, target, ascending, IncrementalFiles.json);
+            }
+            devInfo.recordExported(rows.exported());
         } catch (final Exception e) {
             e.printStackTrace();
+            discardFailedExport(target);
         }
     }
 
     /**
-     * Export a single key to a csv file.
+     * Export a set of keys to a single CSV file with a row per timestamp and a column per key.
+     *
+     * <p>The first line names the columns. The pages of each key are merged by timestamp with
+     * a {@link TimeseriesMerger} so each row is written as soon as every key has moved past its
+     * timestamp, and a key with no reading at a timestamp has an empty field. When the ascending
+     * flag is set the rows are written to a {@link ReverseSpool} in batches and copied to the
+     * file last batch first.</p>
      *
      * @param device the device of interest.
      * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
-     * @param key the timeseries key to export.
+     * @param keys a list of timeseries keys to export.
      * @param earliest the earliest timestamp to export.
      * @param latest the latest timestamp to export.
      */
-    private void exportKeyToCSV(final Device device, final DeviceInfo devInfo, final String key, final long earliest, final long latest) {
-        final int limit = 10000;
-        final String csvFormat = "%s,%s\r\n";
+    private void exportToWideCSV(final Device device, final DeviceInfo devInfo, final List<String> keys, final long earliest, final long latest) {
+        Path target = null;
+        try {
+            final Path outputName = getDeviceDirectory(devInfo).resolve(sanitiseString(devInfo.readingsPrefix.trim() + "_wide") + ".csv" + compression.extension());
 
-        logger.info("Processing key {} ", key);
+            final StringBuilder header = new StringBuilder("ts");
+            for (final String k : keys) {
+                header.append(',').append(CsvRowEncoder.quote(k));
+            }
+            header.append("\r\n");
+
+            // As with the JSON file, only add to the existing file if every key has been
+            // exported before, and only if it has the same columns.
+            long start = Long.MAX_VALUE;
+            for (final String k : keys) {
+                final Long lastExported = devInfo.lastExported.get(k);
+                start = lastExported == null ? Long.MIN_VALUE : Math.min(start, lastExported);
+            }
+            boolean append = incremental && start != Long.MIN_VALUE && Files.exists(outputName);
+            if (append) {
+                try (BufferedReader existing = new BufferedReader(Compression.newReader(outputName))) {
+                    final String columns = existing.readLine();
+                    append = columns != null && header.toString().equals(columns + "\r\n");
+                }
+            }
+            target = append ? Files.createTempFile(outputName.getParent(), "wide", ".tmp") : outputName;
+            final long fetchFrom = append ? Math.max(earliest, start) : earliest;
 
-        String z = devInfo.readingsPrefix + "_" + key;
-        z = sanitiseString(z.trim());
+            // Entries at or before these times were written by an earlier incremental export.
+            final Map<String, Long> exportedBefore = new HashMap<>(devInfo.lastExported);
 
-        try {
-            final Path outputName = getDeviceDirectory(devInfo).resolve(z + ".csv");
-            final BufferedWriter br = infoOnly ? null : Files.newBufferedWriter(outputName, StandardCharsets.UTF_8);
-            if ( ! infoOnly) {
-                devInfo.fieldToFilename.put(key,  outputName.getFileName().toString());
+            // The latest entry written of each key, recorded in devInfo once the file is complete.
+            final Map<String, Long> exported = new HashMap<>();
+
+            final List<TimeseriesPager.Pages> sources = new ArrayList<>(keys.size());
+            for (final String k : keys) {
+                sources.add(pager.open(fetchFrom, latest, timeseriesFetcher(device, devInfo, k, fetchFrom, latest)));
             }
 
-            long end = latest;
-            final List<TsKvEntry> allEntries = new ArrayList<>();
+            // The readings written of each key, for the metrics.
+            final long[] written = new long[keys.size()];
 
-            while (true) {
-                logger.debug("Looking for messages between {} and {}", sdf.format(new Date(earliest)), sdf.format(new Date(end)));
+            try (TimeseriesMerger merger = new TimeseriesMerger(sources);
+                 BufferedWriter br = compression.newWriter(target);
+                 ReverseSpool spool = ascending ? new ReverseSpool(outputName.getParent()) : null) {
 
-                final TimePageLink pageLink = new TimePageLink(limit, earliest, end);
-                final List<String> keys = new ArrayList<>(1);
-                keys.add(key);
-                final List<TsKvEntry> tsl = rc.getTimeseries(device.getId(), keys, 0L, Aggregation.NONE, pageLink);
+                br.write(header.toString());
 
-                // getTimeseries returns results with the latest reading at the head of the list - element 0, and the earliest
-                // reading at the tail, ie size() - 1.
-                final int sz = tsl.size();
-                logger.debug("Received {} messages", sz);
+                final CsvRowEncoder encoder = new CsvRowEncoder(humanReadableDates);
+                final List<String> batch = new ArrayList<>();
+                final StringBuilder segment = new StringBuilder();
 
-                if (sz > 0) {
-                    final long ts1 = tsl.get(0).getTs(); // End of window - latest date
-                    final long ts2 = tsl.get(sz-1).getTs(); // Start of window - earliest date
+                while (merger.next()) {
+                    final long ts = merger.ts();
 
-                    logger.debug("Date range of messages is {} to {}", sdf.format(new Date(ts2)), sdf.format(new Date(ts1)));
+                    // The next field of the row to write.
+                    int column = 0;
+                    boolean firstValue = true;
+                    for (int i = 0; i < merger.size(); i++) {
+                        final Series page = merger.series(i);
+                        if (page == null || page.isBlank(merger.position(i))) {
+                            continue;
+                        }
 
-                    if (ts1 > devInfo.getTo()) {
-                        devInfo.setTo(ts1);
-                    }
+                        final Long lastExported = exportedBefore.get(page.getKey());
+                        if (lastExported != null && ts <= lastExported) {
+                            continue;
+                        }
+
+                        exported.merge(page.getKey(), ts, Math::max);
+                        written[i]++;
 
-                    if (ts2 < devInfo.getFrom()) {
-                        devInfo.setFrom(ts2);
+                        if (firstValue) {
+                            encoder.startRow(ts);
+                            firstValue = false;
+                        }
+                        for (; column < i; column++) {
+                            encoder.appendEmpty();
+                        }
+                        encoder.appendValue(page, merger.position(i));
+                        column = i + 1;
                     }
 
-                    if ( ! infoOnly) {
-                        allEntries.addAll(tsl);
+                    if (firstValue) {
+                        // No values at this timestamp.
+                        continue;
+                    }
+                    for (; column < merger.size(); column++) {
+                        encoder.appendEmpty();
                     }
+                    encoder.endRow();
 
-                    // Don't start on the same reading in the next batch.
-                    end = ts2 - 1;
+                    if (ascending) {
+                        batch.add(encoder.chars().toString());
+                        encoder.clear();
+                        if (batch.size() >= pageLimit) {
+                            spool.addReversed(batch, segment);
+                        }
+                    } else if (encoder.length() >= 32 * 1024) {
+                        encoder.writeTo(br);
+                    }
                 }
 
-                // Less than a full set of readings means we now have the earliest reading
-                // and can finish up for this field.
-                if (sz < limit) {
-                    break;
+                if (ascending) {
+                    spool.addReversed(batch, segment);
+                    spool.writeReversed(br);
+                } else {
+                    encoder.writeTo(br);
                 }
             }
 
-            if (infoOnly) {
-                return;
+            recordWritten(device, keys, written, outputName, target);
+
+            if (append) {
+                IncrementalFiles.merge(outputName, target, ascending, IncrementalFiles.wideCsv(header.toString()));
             }
+            devInfo.recordExported(exported);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            discardFailedExport(target);
+        }
+    }
 
-            if (ascending) {
-                Collections.reverse(allEntries);
+    /**
+     * Export a set of keys to a single Arrow IPC file with a timestamp column and one typed
+     * column per key.
+     *
+     * <p>The pages of each key are merged by timestamp with a {@link TimeseriesMerger} and the
+     * rows are written in record batches of a page's worth of rows by an
+     * {@link ArrowTimeseriesWriter}, latest timestamp first.</p>
+     *
+     * <p>Closing the writer finishes the file even when the export has failed, so the file is
+     * written under a temporary name and only replaces timeseries.arrow once it is complete.</p>
+     *
+     * @param device the device of interest.
+     * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
+     * @param keys a list of timeseries keys to export.
+     * @param earliest the earliest timestamp to export.
+     * @param latest the latest timestamp to export.
+     */
+    private void exportToArrow(final Device device, final DeviceInfo devInfo, final List<String> keys, final long earliest, final long latest) {
+        Path target = null;
+        try {
+            final Path outputName = getDeviceDirectory(devInfo).resolve("timeseries.arrow");
+            target = Files.createTempFile(outputName.getParent(), "timeseries", ".tmp");
+
+            final List<TimeseriesPager.Pages> sources = new ArrayList<>(keys.size());
+            for (final String k : keys) {
+                sources.add(pager.open(earliest, latest, timeseriesFetcher(device, devInfo, k, earliest, latest)));
             }
 
-            for (final TsKvEntry tskv : allEntries) {
-                final String value = tskv.getValueAsString();
-                if ( ! value.trim().isEmpty()) {
-                    String ts;
-                    if (humanReadableDates) {
-                        ts = csvHrFormat.format(tskv.getTs());
-                    } else {
-                        ts = Long.toString(tskv.getTs());
+            // The readings written of each key, for the metrics.
+            final long[] written = new long[keys.size()];
+
+            // The latest entry written of each key, recorded in devInfo once the file is complete.
+            final Map<String, Long> exported = new HashMap<>();
+
+            try (TimeseriesMerger merger = new TimeseriesMerger(sources);
+                 ArrowTimeseriesWriter writer = new ArrowTimeseriesWriter(target, keys, pageLimit)) {
+
+                boolean sampled = false;
+                while (merger.next()) {
+                    final long ts = merger.ts();
+
+                    if ( ! sampled) {
+                        // The column types are chosen from the first batch of rows, which may
+                        // not reach back to the readings of a key that has stopped reporting,
+                        // so show the writer the first page of every key as well.
+                        for (int i = 0; i < merger.size(); i++) {
+                            final Series page = merger.page(i) != null ? merger.page(i) : merger.series(i);
+                            if (page != null) {
+                                writer.sample(i, page);
+                            }
+                        }
+                        sampled = true;
+                    }
+
+                    boolean firstValue = true;
+                    for (int i = 0; i < merger.size(); i++) {
+                        final Series page = merger.series(i);
+                        if (page == null || page.isBlank(merger.position(i))) {
+                            continue;
+                        }
+
+                        if (firstValue) {
+                            writer.startRow(ts);
+                            firstValue = false;
+                        }
+                        writer.set(i, page, merger.position(i));
+                        exported.merge(page.getKey(), ts, Math::max);
+                        written[i]++;
                     }
-                    br.write(String.format(csvFormat, ts, value));
                 }
             }
 
-            br.flush();
-            br.close();
+            Files.move(target, outputName, StandardCopyOption.REPLACE_EXISTING);
+            recordWritten(device, keys, written, outputName, outputName);
+            devInfo.recordExported(exported);
+        } catch (final Exception e) {
+            logger.error("Failed to export device {} to an Arrow file, timeseries.arrow has not been written", device.getName(), e);
+            if (target != null) {
+                try {
+                    Files.deleteIfExists(target);
+                } catch (final IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the file an export was writing when it failed. For an incremental export this is
+     * either the temporary file of new entries, which must not be merged, or a new file that a
+     * later run would otherwise add to as if it were complete. The keys' lastExported times
+     * are left as they were, so the next run fetches the entries again.
+     *
+     * @param target the file being written, or null if it had not been created.
+     */
+    private void discardFailedExport(final Path target) {
+        if (incremental && target != null) {
+            try {
+                Files.deleteIfExists(target);
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Count the readings of each key written to a file holding several keys, and the size of the file.
+     *
+     * @param device the device of interest.
+     * @param keys the keys in the file.
+     * @param written the number of readings written of each key.
+     * @param outputName the file, which names the bytes counted.
+     * @param target the file written, which for an incremental export is merged into outputName.
+     * @throws IOException if the size of the file cannot be read.
+     */
+    private void recordWritten(final Device device, final List<String> keys, final long[] written, final Path outputName, final Path target) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            metrics.rows(device.getName(), keys.get(i), written[i], 0);
+        }
+        metrics.rows(device.getName(), outputName.getFileName().toString(), 0, Files.size(target));
+    }
+
+    /**
+     * Writes the readings of a single key to a csv file as the pages arrive, by way of a
+     * {@link CsvPageWriter}.
+     *
+     * <p>ThingsBoard returns pages from latest to earliest so when the ascending flag is set
+     * each page is written to a {@link ReverseSpool} in ascending order, and the spool is
+     * copied to the csv file last page first by {@link #finish}.</p>
+     *
+     * <p>The key's lastExported time is only moved on by {@link #finish}, so a writer closed
+     * without finishing leaves it as it was and discards the file it was writing.</p>
+     */
+    private final class CsvKeyWriter implements AutoCloseable {
+        private final Device device;
+        private final DeviceInfo devInfo;
+        private final String key;
+        private final Path outputName;
+        private final Path target;
+        private final boolean append;
+        private final long start;
+        private final BufferedWriter br;
+        private final ReverseSpool spool;
+        private final CsvPageWriter rows;
+
+        // The latest timestamp written, Long.MIN_VALUE before the first page.
+        private long exported = Long.MIN_VALUE;
+        private boolean finished = false;
+
+        /**
+         * Open the key's file, or for an incremental export a temporary file holding the
+         * entries after the last exported timestamp, which {@link #finish} merges into the
+         * existing file.
+         *
+         * @param earliest the earliest timestamp to export.
+         */
+        CsvKeyWriter(final Device device, final DeviceInfo devInfo, final String key, final long earliest) throws Exception {
+            this.device = device;
+            this.devInfo = devInfo;
+            this.key = key;
+
+            final String z = sanitiseString((devInfo.readingsPrefix + "_" + key).trim());
+            outputName = getDeviceDirectory(devInfo).resolve(z + ".csv" + compression.extension());
+            devInfo.setFilename(key, outputName.getFileName().toString());
+
+            final Long lastExported = devInfo.getLastExported(key);
+            append = incremental && lastExported != null && Files.exists(outputName);
+            start = append ? Math.max(earliest, lastExported) : earliest;
+            target = append ? Files.createTempFile(outputName.getParent(), z, ".tmp") : outputName;
+
+            // Compressed files can be joined byte for byte because a gzip or zstd file may hold
+            // several compressed streams, one after the other.
+            br = compression.newWriter(target);
+            try {
+                spool = ascending ? new ReverseSpool(outputName.getParent()) : null;
+            } catch (final IOException e) {
+                br.close();
+                discardFailedExport(target);
+                throw e;
+            }
+            rows = new CsvPageWriter(br, spool, humanReadableDates);
+        }
+
+        /**
+         * @return the timestamp the key's export starts after.
+         */
+        long getStart() {
+            return start;
+        }
+
+        /**
+         * Write a page of readings, latest first.
+         */
+        void page(final Series page) throws IOException {
+            exported = Math.max(exported, page.ts(0));
+            metrics.rows(device.getName(), key, page.size(), 0);
+            rows.page(page);
+        }
+
+        /**
+         * Write the spooled pages if ascending, close the file and merge it into the existing
+         * file if the export is incremental.
+         */
+        void finish() throws Exception {
+            rows.finish();
+            closeFiles();
+
+            metrics.rows(device.getName(), outputName.getFileName().toString(), 0, Files.size(target));
+
+            if (append) {
+                IncrementalFiles.merge(outputName, target, ascending, IncrementalFiles.csv);
+            }
+
+            finished = true;
+            if (exported != Long.MIN_VALUE) {
+                devInfo.recordExported(key, exported);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                closeFiles();
+            } finally {
+                if ( ! finished) {
+                    discardFailedExport(target);
+                }
+            }
+        }
+
+        private void closeFiles() throws IOException {
+            try {
+                br.close();
+            } finally {
+                if (spool != null) {
+                    spool.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Export a single key to a csv file.
+     *
+     * <p>Each page of readings is written as soon as it is received, see {@link CsvKeyWriter}.</p>
+     *
+     * @param device the device of interest.
+     * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
+     * @param key the timeseries key to export.
+     * @param earliest the earliest timestamp to export.
+     * @param latest the latest timestamp to export.
+     */
+    private void exportKeyToCSV(final Device device, final DeviceInfo devInfo, final String key, final long earliest, final long latest) {
+        logger.info("Processing key {} ", key);
+
+        try (CsvKeyWriter writer = new CsvKeyWriter(device, devInfo, key, earliest)) {
+            fetchTimeseries(device, devInfo, key, writer.getStart(), latest, writer::page);
+            writer.finish();
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Export a group of keys to a csv file each, one request per page for a single key and
+     * one request per page for all of them otherwise.
+     */
+    private void exportKeyGroupToCSV(final Device device, final DeviceInfo devInfo, final List<String> keys, final long earliest, final long latest) {
+        if (keys.size() == 1) {
+            exportKeyToCSV(device, devInfo, keys.get(0), earliest, latest);
+        } else {
+            exportKeysToCSV(device, devInfo, keys, earliest, latest);
+        }
+    }
+
+    /**
+     * Export a set of keys to a csv file each, fetching the pages of all the keys with one
+     * request per page by way of a {@link KeyGroupPager} and handing each key's pages to its
+     * {@link CsvKeyWriter} as they arrive.
+     *
+     * @param device the device of interest.
+     * @param devInfo a {@link DeviceInfo} object which is updated with earliest/latest timestamps.
+     * @param keys the timeseries keys to export.
+     * @param earliest the earliest timestamp to export.
+     * @param latest the latest timestamp to export.
+     */
+    private void exportKeysToCSV(final Device device, final DeviceInfo devInfo, final List<String> keys, final long earliest, final long latest) {
+        logger.info("Processing keys {} ", keys);
+
+        final List<CsvKeyWriter> writers = new ArrayList<>(keys.size());
+        try {
+            final long[] starts = new long[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                final CsvKeyWriter writer = new CsvKeyWriter(device, devInfo, keys.get(i), earliest);
+                writers.add(writer);
+                starts[i] = writer.getStart();
+            }
+
+            new KeyGroupPager(pageLimit).fetch(keys, starts, latest, keyGroupFetcher(device), (i, page) -> {
+                devInfo.extendRange(page.earliestTs(), page.latestTs());
+                writers.get(i).page(page);
+            });
+
+            // A key whose file cannot be finished does not stop the others being finished.
+            for (final CsvKeyWriter writer : writers) {
+                try {
+                    writer.finish();
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
         } catch (final Exception e) {
             e.printStackTrace();
+        } finally {
+            for (final CsvKeyWriter writer : writers) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
+    /**
+     * Create a {@link KeyGroupPager.Fetcher} that reads a page of each of a set of keys from
+     * ThingsBoard with a single request, converting each key's entries to a {@link Series}.
+     *
+     * @param device the device of interest.
+     * @return the fetcher.
+     */
+    private KeyGroupPager.Fetcher keyGroupFetcher(final Device device) {
+        return (keys, startTs, endTs, limit) -> {
+            logger.debug("Looking for messages of {} keys between {} and {}", keys.size(), formatTs(startTs), formatTs(endTs));
+
+            final TimePageLink pageLink = new TimePageLink(limit, startTs, endTs);
+            final List<TsKvEntry> tsl = tbRequests.call("getTimeseries", () -> rc.getTimeseries(device.getId(), keys, 0L, Aggregation.NONE, pageLink));
+            logger.debug("Received {} messages", tsl.size());
+
+            // The entries of each key are latest first.
+            final Map<String, Series> pages = new HashMap<>();
+            for (final TsKvEntry tskv : tsl) {
+                pages.computeIfAbsent(tskv.getKey(), Series::new).add(tskv);
+            }
+            return pages;
+        };
+    }
+
     /**
      * Push timeseries data to ubidots from an exported device. This method expects the data
      * to be in the same format as export writes with a device summary JSON file and a
@@ -459,130 +1089,82 @@ public class CLI implements Callable<Integer> {
             devInfo = gson.fromJson(fr, DeviceInfo.class);
         }
 
-        final Map<String, String> ubidotsConfig = (Map<String, String>)config.get("ubidots");
-        final String ubiApiKey = ubidotsConfig.get("apikey");
-        final ApiClient u = new ApiClient(ubiApiKey);
-        final DataSource[] existingDataSources = u.getDataSources();
+        final UbidotsScheduler.Lane lane = ubidots.lane();
+        final String dataSourceId = findOrCreateDataSource(lane, devInfo.tbDevName);
 
-        // The calls to Thread.sleep are to keep the rate of API calls to below
-        // the ubidots-imposed limit of 4/second.
-
-        Thread.sleep(1100);
-        boolean devExists = false;
-        DataSource dataSource = null;
-        for (final var ds : existingDataSources) {
-            if (devInfo.tbDevName.equalsIgnoreCase(ds.getName())) {
-                logger.info("Device {} already exists in Ubidots", ds.getName());
-                dataSource = ds;
-                devExists = true;
-                break;
-            }
-        }
-
-        if ( ! devExists) {
-            if (readOnly) {
-                logger.info("[read-only, no-op] Creating device {} in Ubidots", devInfo.tbDevName.trim());
-            } else {
-                logger.info("Creating device {} in Ubidots", devInfo.tbDevName.trim());
-                dataSource = u.createDataSource(devInfo.tbDevName.trim());
-                Thread.sleep(1100);
-            }
-        }
-
-        final Variable[] existingVars = dataSource.getVariables();
-        Thread.sleep(1100);
-        final Map<String, Variable> variables = new HashMap<>();
-        for (final var v : existingVars) {
-            variables.put(v.getName(), v);
-        }
-
-        final ExecutorService es = Executors.newFixedThreadPool(devInfo.fieldToFilename.size());
+        final List<Future<Boolean>> uploads = new ArrayList<>(devInfo.fieldToFilename.size());
         for (final var varName : devInfo.fieldToFilename.keySet()) {
-            Variable v = null;
-            if (variables.containsKey(varName)) {
-                logger.info("Variable {} already exists.", varName);
-                v = variables.get(varName);
-            } else {
-                if (readOnly) {
-                    logger.info("[read-only, no-op] Creating variable {}.", varName);
-                } else {
-                    logger.info("Creating variable {}.", varName);
-                    v = dataSource.createVariable(varName);
-                    Thread.sleep(1100);
-                }
-            }
+            findOrCreateVariable(lane, dataSourceId, varName);
 
-            final DataSource fds = dataSource;
-            final Variable fv = v;
+            final DeviceInfo fdi = devInfo;
             final Path csv = getDeviceDirectory(devInfo).resolve(devInfo.fieldToFilename.get(varName));
             logger.info("Loading values for variable {} from {}", varName, csv.toString());
 
-            es.submit(new Callable<Boolean>() {
+            uploads.add(uploadPool.submit(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
                     try {
-                        // Create and use a new ApiClient object so each thread gets its own API token
-                        // rather than sharing one. This allows each thread to make 4 calls per second
-                        // instead of all threads being limited to 4 calls a second in total.
-                        final ApiClient apiClient = new ApiClient(ubiApiKey);
-
-                        // Now the DataSource and Variable have to be fetched from the new ApiClient
-                        // instance. The Variables found above cannot be used with this thread-local
-                        // ApiClient instance.
-                        final DataSource threadDataSource = apiClient.getDataSource(fds.getId());
-                        final Variable[] threadVars = threadDataSource.getVariables();
-                        Variable threadVariable = null;
-                        for (final var z : threadVars) {
-                            if (z.getName().equals(fv.getName())) {
-                                threadVariable = z;
-                                break;
+                        // Threads take lanes in turn so the uploads are spread over the scheduler's
+                        // API tokens, each of which has its own rate limit.
+                        final UbidotsScheduler.Lane threadLane = ubidots.lane();
+                        final String variableId = dataSourceId != null ? ubidotsCatalog.variableId(threadLane, dataSourceId, varName) : null;
+
+                        if (variableId == null && ! readOnly) {
+                            logger.warn("Could not find variable {}, its values will not be migrated.", varName);
+                        } else if (Files.isReadable(csv) && Files.isRegularFile(csv)) {
+                            // Progress is estimated from the bytes read, which are uncompressed bytes
+                            // for a compressed file, so it is only shown for uncompressed files.
+                            final long fileSize = Compression.of(csv) == Compression.NONE ? Files.size(csv) : 0;
+                            // A read-only run leaves the checkpoint and the device directory alone.
+                            final MigrationCheckpoint checkpoint = readOnly ? null : openCheckpoint(fdi, varName, csv);
+
+                            // The rows are read 200 at a time into reused arrays and collected into
+                            // batches sized to keep under the limit ubidots has for the http post body.
+                            final var values = new double[200];
+                            final var timestamps = new long[200];
+                            final UploadBatcher batcher = new UploadBatcher(ubidotsMaxBytes);
+                            long count = 0;
+
+                            try (CsvBatchReader reader = new CsvBatchReader(Compression.newChannel(csv))) {
+                                int n;
+                                while ((n = reader.read(timestamps, values)) > 0) {
+                                    count += n;
+                                    if (readOnly) {
+                                        continue;
+                                    }
+
+                                    for (int i = 0; i < n; i++) {
+                                        if (checkpoint.skip(timestamps[i])) {
+                                            continue;
+                                        }
+
+                                        final UploadQueue.Batch batch = batcher.add(timestamps[i], values[i]);
+                                        if (batch != null) {
+                                            // The percentage complete figure for display to the user is
+                                            // estimated from how much of the file has been read.
+                                            if (fileSize > 0) {
+                                                logger.info("Saving {} values for key {}. {}%", batch.size(), varName, reader.bytesRead() * 100 / fileSize);
+                                            } else {
+                                                logger.info("Saving {} values for key {}.", batch.size(), varName);
+                                            }
+                                            saveBatch(fdi.tbDevName, threadLane, variableId, varName, batch, checkpoint);
+                                        }
+                                    }
+                                }
                             }
-                        }
 
-                        if (threadVariable != null && Files.isReadable(csv) && Files.isRegularFile(csv)) {
-                            final var lines = Files.readAllLines(csv);
-                            final int lineCount = lines.size();
-                            int linesLeft = lineCount;
-
-                            if (readOnly) {
-                                logger.info("[read-only, no-op] Read csv for variable {}", varName);
-                                return true;
+                            if ( ! readOnly && checkpoint.shortOfCheckpoint()) {
+                                logger.warn("{} has fewer values than the checkpoint of key {} says were uploaded, it may have changed", csv.toString(), varName);
                             }
 
-                            // i is the index into the lines from the csv file. It is incremented
-                            // in the inner loop that adds the values to the array that is sent to ubidots.
-                            int i = 0;
-                            while (i < lineCount) {
-                                // 200 values at a time to keep under the 10kb limit
-                                // ubidots has for the http post body.
-                                int limit = 200;
-                                if (linesLeft < limit) {
-                                    limit = linesLeft;
-                                }
-
-                                final var values = new double[limit];
-                                final var timestamps = new long[limit];
-
-                                // This inner loop prepares a chunk of timestamps and values to
-                                // send in a single request.
-                                for (int j = 0; j < limit; j++) {
-                                    final var line = lines.get(i);
-                                    final var cols = line.split(",");
-                                    timestamps[j] = Long.parseLong(cols[0]);
-                                    values[j] = Double.parseDouble(cols[1]);
-                                    i++;
-                                }
-
-                                // p & q are only used to calculate a percentage complete figure
-                                // for display to the user.
-                                final int q = lineCount - linesLeft + limit;
-                                final int p = (int)((float)q / (float)lineCount * 100.0f);
-
-                                logger.info("Saving {} values for key {}. {}%", limit, varName, p);
-                                threadVariable.saveValues(values, timestamps);
-                                Thread.sleep(300);
+                            final UploadQueue.Batch last = batcher.flush();
+                            if (last != null) {
+                                logger.info("Saving {} values for key {}. 100%", last.size(), varName);
+                                saveBatch(fdi.tbDevName, threadLane, variableId, varName, last, checkpoint);
+                            }
 
-                                linesLeft -= limit;
+                            if (readOnly) {
+                                logger.info("[read-only, no-op] Read csv for variable {}, {} entries", varName, count);
                             }
 
                             return true;
@@ -595,19 +1177,124 @@ public class CLI implements Callable<Integer> {
 
                     return false;
                 }
-            });
+            }));
         }
 
-        es.shutdown();
-        while ( ! es.isTerminated()) {
-            es.awaitTermination(1, TimeUnit.MINUTES);
+        // The upload pool is shared by all devices being migrated, so wait for this device's
+        // variables rather than for the pool to terminate.
+        for (final Future<Boolean> f : uploads) {
+            f.get();
+        }
+    }
+
+    /**
+     * Find the Ubidots DataSource for a device, creating it unless -r is used.
+     *
+     * @param lane the lane to make the requests with.
+     * @param deviceName the name of the device.
+     * @return the id of the DataSource, or null if it does not exist and -r is used.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    private String findOrCreateDataSource(final UbidotsScheduler.Lane lane, final String deviceName) throws Exception {
+        final String id = ubidotsCatalog.dataSourceId(lane, deviceName);
+        if (id != null) {
+            logger.info("Device {} already exists in Ubidots", deviceName);
+            return id;
+        }
+
+        if (readOnly) {
+            logger.info("[read-only, no-op] Creating device {} in Ubidots", deviceName.trim());
+            return null;
+        }
+
+        logger.info("Creating device {} in Ubidots", deviceName.trim());
+        return ubidotsCatalog.createDataSource(lane, deviceName.trim());
+    }
+
+    /**
+     * Make sure a Ubidots variable exists, creating it unless -r is used.
+     *
+     * @param lane the lane to make the requests with.
+     * @param dataSourceId the id of the device's DataSource, null if it does not exist and -r is used.
+     * @param varName the name of the variable.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    private void findOrCreateVariable(final UbidotsScheduler.Lane lane, final String dataSourceId, final String varName) throws Exception {
+        if (dataSourceId != null && ubidotsCatalog.variableId(lane, dataSourceId, varName) != null) {
+            logger.info("Variable {} already exists.", varName);
+        } else if (readOnly) {
+            logger.info("[read-only, no-op] Creating variable {}.", varName);
+        } else {
+            logger.info("Creating variable {}.", varName);
+            ubidotsCatalog.createVariable(lane, dataSourceId, varName);
         }
     }
 
+    /**
+     * Upload a batch of values and record it in the variable's checkpoint. A failed upload is
+     * retried with an increasing delay, on top of the retries the scheduler makes when Ubidots
+     * says too many requests are being made.
+     *
+     * @param deviceName the name of the device, for the metrics.
+     * @param lane the lane to make the requests with.
+     * @param variableId the id of the Ubidots variable.
+     * @param varName the name of the variable.
+     * @param batch the values to upload.
+     * @param checkpoint the variable's checkpoint.
+     * @throws Exception if the batch could not be uploaded after all the attempts.
+     */
+    private void saveBatch(final String deviceName, final UbidotsScheduler.Lane lane, final String variableId, final String varName, final UploadQueue.Batch batch, final MigrationCheckpoint checkpoint) throws Exception {
+        final UbidotsClient client = lane.client();
+        long backoff = 2000;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                lane.call("saveValues", () -> {
+                    client.saveValues(variableId, batch.timestamps, batch.values);
+                    return null;
+                });
+                break;
+            } catch (final Exception e) {
+                if (attempt >= uploadAttempts) {
+                    throw e;
+                }
+                logger.warn("Failed to save {} values for variable {}, retrying in {} ms: {}", batch.size(), varName, backoff, e.toString());
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+
+        checkpoint.uploaded(batch.size(), batch.timestamps[batch.size() - 1]);
+        metrics.rows(deviceName, varName, batch.size(), batch.bytes);
+    }
+
+    /**
+     * Open the checkpoint of a variable being migrated, in the device's export directory.
+     *
+     * @param devInfo the device.
+     * @param varName the name of the variable.
+     * @param source the file the values are read from.
+     * @return the checkpoint, which starts from the first value unless --resume was given.
+     * @throws Exception if the directory cannot be created or the checkpoint cannot be read.
+     */
+    private MigrationCheckpoint openCheckpoint(final DeviceInfo devInfo, final String varName, final Path source) throws Exception {
+        createDeviceSummaryDirectory(devInfo);
+        final Path file = getDeviceDirectory(devInfo).resolve(devInfo.readingsPrefix + "_" + sanitiseString(varName) + "_ubidots.checkpoint");
+        final MigrationCheckpoint checkpoint = MigrationCheckpoint.open(file, source, resume);
+        if (checkpoint.resumeFrom() > 0) {
+            logger.info("Resuming variable {} after {} values uploaded by an earlier run", varName, checkpoint.resumeFrom());
+        }
+        return checkpoint;
+    }
+
     /**
      * Push timeseries data to ubidots from an exported device. This method expects the data
      * to be in the format written by the TTN v3 payload formatter driver program.
      *
+     * <p>The file is read and uploaded at the same time. The readings of each variable are
+     * collected into batches with their own timestamps, so objects do not need to have every
+     * key, and full batches are put on the variable's {@link UploadQueue}. Reading waits while
+     * a variable's queue is full, so memory use does not depend on the size of the file.</p>
+     *
      * @param device the name of the device. This is used to find the JSON and CSV files.
      * @param valuesFile the JSON file to read the values from.
      * @throws Exception if there is an error.
@@ -615,176 +1302,129 @@ public class CLI implements Callable<Integer> {
     private void migrateDevice(final String deviceName, final Path valuesFile) throws Exception {
         logger.info("Migrating device {}", deviceName);
 
+        final UbidotsScheduler.Lane lane = ubidots.lane();
+        final String dataSourceId = findOrCreateDataSource(lane, deviceName);
+
         logger.info("Reading file {}", valuesFile.toString());
 
-        final List<Long> timestampsList = new ArrayList<>();
-        final Map<String, List<Double>> kvPairs = new HashMap<>();
+        // A variable that cannot be uploaded to maps to null and its readings are skipped.
+        final Map<String, UploadQueue> queues = new HashMap<>();
+        final Map<String, MigrationCheckpoint> checkpoints = new HashMap<>();
+        final DeviceInfo devInfo = createDeviceInfo(deviceName, "ignored");
+        int entries = 0;
 
-        try (final JsonReader reader = new JsonReader(new FileReader(valuesFile.toString()))) {
+        try (final JsonReader reader = new JsonReader(Compression.newReader(valuesFile))) {
+            final Map<String, Double> objValues = new HashMap<>();
             reader.beginArray();
             while (reader.hasNext()) {
+                long ts = 0;
+                objValues.clear();
                 reader.beginObject();
                 while (reader.hasNext()) {
                     final String key = reader.nextName();
 
                     if ("ts".equals(key)) {
-                        final long ts = reader.nextLong();
-                        timestampsList.add(ts);
+                        ts = reader.nextLong();
                     } else {
-                        final double value = reader.nextDouble();
-                        List<Double> values = kvPairs.get(key);
-                        if (values == null) {
-                            values = new ArrayList<Double>();
-                            kvPairs.put(key, values);
-                        }
-                        values.add(value);
+                        objValues.put(key, reader.nextDouble());
                     }
                 }
                 reader.endObject();
-            }
-            reader.endArray();
-        }
 
-        logger.info("Read {} entries from file", timestampsList.size());
-
-        final Map<String, String> ubidotsConfig = (Map<String, String>)config.get("ubidots");
-        final String ubiApiKey = ubidotsConfig.get("apikey");
-        final ApiClient u = new ApiClient(ubiApiKey);
-        final DataSource[] existingDataSources = u.getDataSources();
-
-        // The calls to Thread.sleep are to keep the rate of API calls to below
-        // the ubidots-imposed limit of 4/second.
+                // The ts field may come after the values.
+                for (final Map.Entry<String, Double> kv : objValues.entrySet()) {
+                    final String varName = kv.getKey();
+                    if ( ! queues.containsKey(varName)) {
+                        try {
+                            final MigrationCheckpoint checkpoint = readOnly ? null : openCheckpoint(devInfo, varName, valuesFile);
+                            checkpoints.put(varName, checkpoint);
+                            queues.put(varName, openUploadQueue(deviceName, lane, dataSourceId, varName, checkpoint));
+                        } catch (final MigrationCheckpoint.MismatchException e) {
+                            logger.error("Not migrating variable {}: {}", varName, e.getMessage());
+                            queues.put(varName, null);
+                        }
+                    }
 
-        Thread.sleep(1100);
-        boolean devExists = false;
-        DataSource dataSource = null;
-        for (final var ds : existingDataSources) {
-            if (deviceName.equalsIgnoreCase(ds.getName())) {
-                logger.info("Device {} already exists in Ubidots", ds.getName());
-                dataSource = ds;
-                devExists = true;
-                break;
+                    final UploadQueue queue = queues.get(varName);
+                    final MigrationCheckpoint checkpoint = checkpoints.get(varName);
+                    try {
+                        if (queue != null && (checkpoint == null || ! checkpoint.skip(ts))) {
+                            queue.add(ts, kv.getValue().doubleValue());
+                        }
+                    } catch (final MigrationCheckpoint.MismatchException e) {
+                        // Only readings to skip have been read so nothing has been queued.
+                        logger.error("Not migrating variable {}: {}", varName, e.getMessage());
+                        queue.finish();
+                        queues.put(varName, null);
+                    } catch (final UploadQueue.FailedException e) {
+                        // The rest of the variable's readings would only be discarded.
+                        logger.error("Stopped migrating variable {}, its readings after those uploaded are not migrated", varName, e.getCause());
+                        queues.put(varName, null);
+                    }
+                }
+                entries++;
             }
-        }
+            reader.endArray();
+        } finally {
+            // Let the uploads of what was read finish even if the file could not be read to the end.
+            for (final Map.Entry<String, UploadQueue> q : queues.entrySet()) {
+                if (q.getValue() == null) {
+                    continue;
+                }
 
-        if ( ! devExists) {
-            if (readOnly) {
-                logger.info("[read-only, no-op] Creating device {} in Ubidots", deviceName);
-            } else {
-                logger.info("Creating device {} in Ubidots", deviceName);
-                dataSource = u.createDataSource(deviceName);
-                Thread.sleep(1100);
+                try {
+                    q.getValue().finish();
+                    if (readOnly) {
+                        logger.info("[read-only, no-op] Reading List for variable {}, {} entries", q.getKey(), q.getValue().count());
+                    }
+                } catch (final Exception e) {
+                    logger.error("Failed to migrate variable {}", q.getKey(), e);
+                }
             }
         }
 
-        final Variable[] existingVars = dataSource.getVariables();
-        Thread.sleep(1100);
-        final Map<String, Variable> variables = new HashMap<>();
-        for (final var v : existingVars) {
-            variables.put(v.getName(), v);
-        }
-
-        final ExecutorService es = Executors.newFixedThreadPool(kvPairs.size());
-
-        for (final var varName : kvPairs.keySet()) {
-            Variable v = null;
-            if (variables.containsKey(varName)) {
-                logger.info("Variable {} already exists.", varName);
-                v = variables.get(varName);
-            } else {
-                if (readOnly) {
-                    logger.info("[read-only, no-op] Creating variable {}.", varName);
-                } else {
-                    logger.info("Creating variable {}.", varName);
-                    v = dataSource.createVariable(varName);
-                    Thread.sleep(1100);
-                }
+        for (final Map.Entry<String, MigrationCheckpoint> c : checkpoints.entrySet()) {
+            if (c.getValue() != null && queues.get(c.getKey()) != null && c.getValue().shortOfCheckpoint()) {
+                logger.warn("{} has fewer values than the checkpoint of key {} says were uploaded, it may have changed", valuesFile.toString(), c.getKey());
             }
+        }
 
-            // Make final copies of the mutable dataSource and v(ariable) objects
-            // so the threaded code can read them.
-            final DataSource fds = dataSource;
-            final Variable fv = v;
-
-            es.submit(new Callable<Boolean>() {
-                @Override
-                public Boolean call() {
-                    try {
-                        // Create and use a new ApiClient object so each thread gets its own API token
-                        // rather than sharing one. This allows each thread to make 4 calls per second
-                        // instead of all threads being limited to 4 calls a second in total.
-                        final ApiClient apiClient = new ApiClient(ubiApiKey);
-
-                        // Now the DataSource and Variable have to be fetched from the new ApiClient
-                        // instance. The Variables found above cannot be used with this thread-local
-                        // ApiClient instance.
-                        final DataSource threadDataSource = apiClient.getDataSource(fds.getId());
-                        final Variable[] threadVars = threadDataSource.getVariables();
-                        Variable threadVariable = null;
-                        for (final var z : threadVars) {
-                            if (z.getName().equals(fv.getName())) {
-                                threadVariable = z;
-                                break;
-                            }
-                        }
-
-                        final int lineCount = timestampsList.size();
-                        int linesLeft = lineCount;
-                        final List<Double> valuesList = kvPairs.get(fv.getName());
-
-                        if (readOnly) {
-                            logger.info("[read-only, no-op] Reading List for variable {}, {} entries", varName, valuesList.size());
-                            return true;
-                        }
-
-                        // i is the index into the Lists built from the JSON file. It is incremented
-                        // in the inner loop that adds the values to the array that is sent to ubidots.
-                        int i = 0;
-                        while (i < lineCount) {
-                            // 200 values at a time to keep under the 10kb limit
-                            // ubidots has for the http post body.
-                            int limit = 200;
-                            if (linesLeft < limit) {
-                                limit = linesLeft;
-                            }
-
-                            final var values = new double[limit];
-                            final var timestamps = new long[limit];
-
-                            // This inner loop prepares a chunk of timestamps and values to
-                            // send in a single request.
-                            for (int j = 0; j < limit; j++) {
-                                timestamps[j] = timestampsList.get(i);
-                                values[j] = valuesList.get(i);
-                                i++;
-                            }
-
-                            // p & q are only used to calculate a percentage complete figure
-                            // for display to the user.
-                            final int q = lineCount - linesLeft + limit;
-                            final int p = (int)((float)q / (float)lineCount * 100.0f);
-
-                            logger.info("Saving {} values for key {}. {}%", limit, varName, p);
-                            threadVariable.saveValues(values, timestamps);
-                            Thread.sleep(300);
-
-                            linesLeft -= limit;
-                        }
+        logger.info("Read {} entries from file", entries);
+    }
 
-                        return true;
-                    } catch (final Exception e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Find or create a Ubidots variable and make the queue its readings are uploaded from.
+     *
+     * @param deviceName the name of the device, for the metrics.
+     * @param lane the lane the device's DataSource was found with.
+     * @param dataSourceId the id of the device's DataSource, null if it was not created because of -r.
+     * @param varName the name of the variable.
+     * @param checkpoint records the uploaded batches, null when -r is used.
+     * @return the queue, or null if the variable cannot be uploaded to.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    private UploadQueue openUploadQueue(final String deviceName, final UbidotsScheduler.Lane lane, final String dataSourceId, final String varName, final MigrationCheckpoint checkpoint) throws Exception {
+        findOrCreateVariable(lane, dataSourceId, varName);
 
-                    return false;
-                }
-            });
+        if (readOnly) {
+            return new UploadQueue(uploadPool, 4, ubidotsMaxBytes, batch -> { });
         }
 
-        es.shutdown();
-        while ( ! es.isTerminated()) {
-            es.awaitTermination(1, TimeUnit.MINUTES);
+        // Each variable takes the next lane so the uploads are spread over the scheduler's API
+        // tokens.
+        final UbidotsScheduler.Lane uploadLane = ubidots.lane();
+        final String variableId = ubidotsCatalog.variableId(uploadLane, dataSourceId, varName);
+        if (variableId == null) {
+            logger.warn("Could not find variable {}, its values will not be migrated.", varName);
+            return null;
         }
+
+        // Batches are sized to keep under the limit ubidots has for the http post body. A few
+        // batches may wait for each variable while the file is read.
+        return new UploadQueue(uploadPool, 4, ubidotsMaxBytes, batch -> {
+            logger.info("Saving {} values for key {}.", batch.size(), varName);
+            saveBatch(deviceName, uploadLane, variableId, varName, batch, checkpoint);
+        });
     }
 
     @Option(names = { "-n", "--devname" }, description = "the ThingsBoard name for the device, may be given multiple times")
@@ -808,9 +1448,24 @@ public class CLI implements Callable<Integer> {
     @Option(names = { "-i", "--info" }, description = "only write the info file for each named device")
     private boolean infoOnly;
 
+    @Option(names = { "--fleet" }, description = "write fleet.csv with the keys and first and last seen times of every device of the tenant, or of the named devices")
+    private boolean fleet;
+
     @Option(names = { "-j", "--json" }, description = "write the timeseries data in a format suitable for use with ThingsBoard saveEntityTelemetry REST call, or read Ubidots values from a JSON file")
     private boolean jsonTs;
 
+    @Option(names = { "--wide" }, description = "write the timeseries data of each device to a single CSV file with a row per timestamp and a column per key")
+    private boolean wide;
+
+    @Option(names = { "--arrow" }, description = "write the timeseries data of each device to an Arrow IPC file with a timestamp column and a typed column per key")
+    private boolean arrow;
+
+    @Option(names = { "--agg" }, description = "export ThingsBoard's AVG, MIN, MAX, SUM or COUNT of the readings in each --interval rather than the readings")
+    private String agg;
+
+    @Option(names = { "--interval" }, defaultValue = "1h", description = "the length of the intervals aggregated with --agg, such as 15m, 1h or 1d")
+    private String interval;
+
     @Option(names = { "-hr", "--human-readable" }, description = "write dates in human-readable format")
     private boolean humanReadableDates;
 
@@ -835,6 +1490,60 @@ public class CLI implements Callable<Integer> {
     @Option(names = { "--values" }, description = "path to the JSON values file")
     private Path valuesFile;
 
+    @Option(names = { "--parallelism" }, defaultValue = "1", description = "the number of devices to look up and export or migrate at the same time")
+    private int parallelism;
+
+    @Option(names = { "--incremental" }, description = "only export entries newer than those exported by the last run and add them to the existing files, which must have been written with the same -a, -j and --wide options")
+    private boolean incremental;
+
+    @Option(names = { "--compress" }, description = "compress the exported files with gzip or zstd; zstd falls back to gzip if it is not available on this platform")
+    private String compress;
+
+    @Option(names = { "--key-parallelism" }, defaultValue = "1", description = "the number of keys of a device to export at the same time when writing CSV files")
+    private int keyParallelism;
+
+    @Option(names = { "--max-requests" }, defaultValue = "16", description = "the maximum number of ThingsBoard requests in progress at the same time; fewer are used while the server slows down or reports errors")
+    private int maxRequests;
+
+    @Option(names = { "--request-rate" }, defaultValue = "0", description = "the maximum number of ThingsBoard requests per second, 0 for no limit")
+    private double requestRate;
+
+    @Option(names = { "--keys-per-request" }, defaultValue = "20", description = "the number of keys whose readings are fetched with each ThingsBoard request when writing CSV files, 1 to fetch each key separately")
+    private int keysPerRequest;
+
+    @Option(names = { "--shards" }, defaultValue = "1", description = "the maximum number of time shards of a key's history to fetch at the same time")
+    private int shards;
+
+    @Option(names = { "--max-uploads" }, defaultValue = "8", description = "the maximum number of Ubidots variables being uploaded at the same time across all devices")
+    private int maxUploads;
+
+    @Option(names = { "--ubidots-max-bytes" }, defaultValue = "10000", description = "the largest request body to send to Ubidots; as many values as fit are sent in each request")
+    private int ubidotsMaxBytes;
+
+    @Option(names = { "--ubidots-cache" }, description = "a file to keep the ids of Ubidots devices in between migrations")
+    private Path ubidotsCacheFile;
+
+    @Option(names = { "--ubidots-cache-ttl" }, defaultValue = "24", description = "the number of hours an id in the --ubidots-cache file can be used for after it was last found to work")
+    private long ubidotsCacheTtl;
+
+    @Option(names = { "--ubidots-tokens" }, defaultValue = "4", description = "the number of Ubidots API tokens to spread migration requests over")
+    private int ubidotsTokens;
+
+    @Option(names = { "--ubidots-token-rate" }, defaultValue = "4", description = "the maximum number of Ubidots requests per second made with each API token")
+    private double ubidotsTokenRate;
+
+    @Option(names = { "--ubidots-account-rate" }, defaultValue = "16", description = "the maximum number of Ubidots requests per second made by the account, 0 for no limit")
+    private double ubidotsAccountRate;
+
+    @Option(names = { "--resume" }, description = "when -m is used, continue each variable from the checkpoint written by an earlier migration, skipping the values it uploaded")
+    private boolean resume;
+
+    @Option(names = { "--metrics-file" }, description = "write a JSON report of request latencies, rows and bytes per device and key, and queue depths to the file at the end of the run")
+    private Path metricsFile;
+
+    @Option(names = { "--metrics-interval" }, defaultValue = "0", description = "log a summary of the metrics every n seconds while running, 0 to not log them")
+    private int metricsInterval;
+
     @Option(names = { "-r" }, description = "read-only - when -m is used, only check if devices and variables exist and CSV files can be read")
     private boolean readOnly;
 
@@ -920,11 +1629,90 @@ public class CLI implements Callable<Integer> {
             }
         }
 
+        try {
+            compression = Compression.forName(compress);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+
+        if (StringUtils.isNotEmpty(agg)) {
+            try {
+                aggregation = Aggregation.valueOf(agg.trim().toUpperCase(Locale.ROOT));
+                aggregationInterval = AggregatingFetcher.parseInterval(interval);
+            } catch (final IllegalArgumentException | ArithmeticException e) {
+                System.err.println(aggregation == null ? "Unknown aggregation " + agg + ", use AVG, MIN, MAX, SUM or COUNT" : e.getMessage());
+                return 1;
+            }
+            if (aggregation == Aggregation.NONE) {
+                aggregation = null;
+            }
+        }
+
+        if (aggregation != null && incremental) {
+            // The aggregate of the interval the last run ended in would be left incomplete.
+            System.err.println("--incremental cannot be used with --agg");
+            return 1;
+        }
+
+        if (fleet && migrateDevice) {
+            System.err.println("--fleet cannot be used with -m");
+            return 1;
+        }
+
+        if (incremental && jsonTs && compression != Compression.NONE) {
+            // The new objects have to be joined to the existing array inside the compressed data.
+            System.err.println("--incremental cannot be used with --compress when writing JSON");
+            return 1;
+        }
+
+        if (wide && (jsonTs || arrow)) {
+            System.err.println("--wide cannot be used with -j or --arrow");
+            return 1;
+        }
+
+        if (incremental && wide && compression != Compression.NONE) {
+            // The header of the existing file is inside the compressed data.
+            System.err.println("--incremental cannot be used with --compress when writing wide CSV files");
+            return 1;
+        }
+
+        if (arrow && (jsonTs || incremental || compression != Compression.NONE)) {
+            System.err.println("--arrow cannot be used with -j, --incremental or --compress");
+            return 1;
+        }
+
+        if (arrow && ascending) {
+            // Arrow readers sort cheaply, reversing the record batches would mean spooling the file.
+            logger.warn("-a is ignored with --arrow, rows are written latest first");
+        }
+
         if ( ! migrateDevice) {
-            rc = new RestClient("https://" + host);
+            // Each shard is sized to hold about 4 pages, which is also how many pages a shard can
+            // fetch ahead of the one being written.
+            pager = new TimeseriesPager(shardPool, pageLimit, shards, 4);
+            tbRequests = new RequestLimiter("ThingsBoard", metrics, requestRate, maxRequests);
+            metrics.gauge("thingsboard.inFlight", tbRequests::getInFlight);
+            metrics.gauge("thingsboard.concurrencyLimit", tbRequests::getLimit);
+            metrics.gauge("export.shardFetches", () -> active(shardPool));
+            if (keyParallelism > 1) {
+                keyPool = Executors.newFixedThreadPool(keyParallelism, daemonThreads("key-export"));
+                metrics.gauge("export.keysQueued", () -> queued(keyPool));
+            }
+
+            // A host given with a scheme, such as a local test server on http, is used as is.
+            rc = new RestClient(host.startsWith("http://") || host.startsWith("https://") ? host : "https://" + host);
             rc.login(user, password);
         }
 
+        // Gauges are sampled every second so their largest values are seen, and the metrics
+        // are printed every --metrics-interval seconds.
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemonThreads("metrics"));
+        reporter.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+        if (metricsInterval > 0) {
+            reporter.scheduleAtFixedRate(() -> logger.info("Metrics: {}", metrics.summary()), metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+
         try {
             if (deviceNamesFile != null) {
                 if (deviceNamesArray != null) {
@@ -948,31 +1736,20 @@ public class CLI implements Callable<Integer> {
                 }
             }
 
-            for (final String n : deviceNamesList) {
-                try {
-                    if (migrateDevice) {
-                        if (jsonTs) {
-                            migrateDevice(n.trim(), valuesFile);
-                        } else {
-                            // Read from the device info JSON, CSV timeseries files.
-                            // Don't trim this name?
-                            migrateDevice(n);
-                        }
-                        continue;
-                    }
-
-                    final Optional<Device> dev = rc.findDevice(n);
-                    dev.ifPresent(d -> {
-                        try {
-                            exportDevice(d);
-                        } catch (final Exception e) {
-                            e.printStackTrace();
-                        }
-                    });
-                } catch (final Exception e) {
-                    e.printStackTrace();
-                }
-            };
+            if (migrateDevice) {
+                final Map<String, String> ubidotsConfig = (Map<String, String>)config.get("ubidots");
+                ubidots = new UbidotsScheduler(ubidotsConfig.get("apikey"), ubidotsConfig.get("url"), metrics, ubidotsTokens, ubidotsTokenRate, ubidotsAccountRate);
+                ubidotsCatalog = new UbidotsCatalog(ubidotsCacheFile, TimeUnit.HOURS.toMillis(ubidotsCacheTtl));
+
+                uploadPool = Executors.newFixedThreadPool(Math.max(1, maxUploads), daemonThreads("ubidots-upload"));
+                metrics.gauge("ubidots.uploadsActive", () -> active(uploadPool));
+                metrics.gauge("ubidots.uploadsQueued", () -> queued(uploadPool));
+                migrateDevices();
+            } else if (fleet) {
+                scanFleet();
+            } else {
+                exportDevices();
+            }
 
             if (rc != null) {
                 rc.logout();
@@ -981,6 +1758,15 @@ public class CLI implements Callable<Integer> {
         } catch (final Exception e) {
             e.printStackTrace();
             return 1;
+        } finally {
+            reporter.shutdownNow();
+            if (metricsFile != null) {
+                try {
+                    metrics.write(metricsFile);
+                } catch (final IOException e) {
+                    logger.warn("Could not write the metrics file {}: {}", metricsFile, e.toString());
+                }
+            }
         }
 
         return 0;
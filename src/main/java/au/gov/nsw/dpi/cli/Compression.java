@@ -0,0 +1,169 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * The compression of the exported files.
+ *
+ * <p>Files are compressed as they are written, through large buffers so the compressor and
+ * the disk are given big blocks. The compression of a file being read is chosen from its
+ * extension, so the migrate path reads compressed exports transparently.</p>
+ *
+ * <p>zstd uses the zstd-jni native library. If it cannot be loaded on this platform, gzip is
+ * used instead.</p>
+ */
+enum Compression {
+    NONE(""),
+    GZIP(".gz"),
+    ZSTD(".zst");
+
+    private static final Logger logger = LoggerFactory.getLogger(Compression.class);
+
+    private static final int bufferSize = 256 * 1024;
+
+    // Level 3 is the zstd default, faster than gzip's default with a better ratio.
+    private static final int zstdLevel = 3;
+
+    private final String extension;
+
+    Compression(final String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return the extension added to the names of files written with this compression.
+     */
+    String extension() {
+        return extension;
+    }
+
+    /**
+     * @param name gzip or zstd, or null or empty for no compression.
+     * @return the compression, gzip if zstd is asked for and cannot be used here.
+     * @throws IllegalArgumentException if the name is not recognised.
+     */
+    static Compression forName(final String name) {
+        if (name == null || name.isEmpty() || "none".equalsIgnoreCase(name)) {
+            return NONE;
+        }
+        if ("gzip".equalsIgnoreCase(name) || "gz".equalsIgnoreCase(name)) {
+            return GZIP;
+        }
+        if ("zstd".equalsIgnoreCase(name) || "zst".equalsIgnoreCase(name)) {
+            try {
+                com.github.luben.zstd.util.Native.load();
+                return ZSTD;
+            } catch (final LinkageError e) {
+                logger.warn("zstd is not available on this platform, using gzip: {}", e.toString());
+                return GZIP;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + name + ", use gzip or zstd");
+    }
+
+    /**
+     * @param file the file to write, which is created or truncated.
+     * @return a writer that compresses the text written to it.
+     * @throws IOException if the file cannot be opened.
+     */
+    BufferedWriter newWriter(final Path file) throws IOException {
+        final OutputStream out = Files.newOutputStream(file);
+        try {
+            final OutputStream compressed;
+            switch (this) {
+                case GZIP:
+                    compressed = new GZIPOutputStream(out, bufferSize);
+                    break;
+                case ZSTD:
+                    compressed = new BufferedOutputStream(new ZstdOutputStream(out, zstdLevel), bufferSize);
+                    break;
+                default:
+                    compressed = new BufferedOutputStream(out, bufferSize);
+                    break;
+            }
+            return new BufferedWriter(new OutputStreamWriter(compressed, StandardCharsets.UTF_8), bufferSize);
+        } catch (final IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param file the file to read.
+     * @return the compression of the file, from its extension.
+     */
+    static Compression of(final Path file) {
+        final String name = file.getFileName().toString();
+        if (name.endsWith(GZIP.extension)) {
+            return GZIP;
+        }
+        if (name.endsWith(ZSTD.extension)) {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    /**
+     * @param file the file to read, compressed or not depending on its extension.
+     * @return a stream of the uncompressed bytes of the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    static InputStream newInputStream(final Path file) throws IOException {
+        final InputStream in = Files.newInputStream(file);
+        try {
+            switch (of(file)) {
+                case GZIP:
+                    return new GZIPInputStream(in, bufferSize);
+                case ZSTD:
+                    return new BufferedInputStream(new ZstdInputStream(in), bufferSize);
+                default:
+                    return in;
+            }
+        } catch (final IOException | RuntimeException | LinkageError e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param file the file to read, compressed or not depending on its extension.
+     * @return a channel of the uncompressed bytes of the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    static ReadableByteChannel newChannel(final Path file) throws IOException {
+        if (of(file) == NONE) {
+            return Files.newByteChannel(file);
+        }
+        return Channels.newChannel(newInputStream(file));
+    }
+
+    /**
+     * @param file the file to read, compressed or not depending on its extension.
+     * @return a reader of the uncompressed text of the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    static Reader newReader(final Path file) throws IOException {
+        return new InputStreamReader(newInputStream(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,220 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads <code>timestamp,value</code> rows from an exported CSV file into arrays of
+ * timestamps and values, a batch at a time.
+ *
+ * <p>The rows are parsed directly from the bytes read from the channel so no String is
+ * created for a line unless its value is in a form the fast path does not handle, such as
+ * one with an exponent or more than 15 significant digits, which is passed to
+ * Double.parseDouble. Only the current buffer of the file is held in memory.</p>
+ *
+ * <p>Empty lines are skipped. A line that is not a long timestamp, a comma, and a number
+ * causes a NumberFormatException, as it would when parsing the line with Long.parseLong
+ * and Double.parseDouble.</p>
+ */
+final class CsvBatchReader implements Closeable {
+
+    // Powers of ten that are exactly representable as doubles.
+    private static final double[] powersOfTen = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    private boolean eof = false;
+    private long bytesRead = 0;
+
+    /**
+     * @param channel the CSV file. It is closed when the reader is closed.
+     */
+    CsvBatchReader(final ReadableByteChannel channel) {
+        this.channel = channel;
+        buf.flip();
+    }
+
+    /**
+     * Read the next rows into the arrays, up to the length of the arrays.
+     *
+     * @param timestamps receives the timestamps.
+     * @param values receives the values.
+     * @return the number of rows read, less than the length of the arrays only at the end of
+     *     the file, and 0 when there are no more rows.
+     * @throws IOException if the file cannot be read.
+     * @throws NumberFormatException if a line cannot be parsed.
+     */
+    int read(final long[] timestamps, final double[] values) throws IOException {
+        final int max = Math.min(timestamps.length, values.length);
+        int n = 0;
+        while (n < max) {
+            final int end = nextLineEnd();
+            if (end < 0) {
+                break;
+            }
+
+            final int start = buf.position();
+            buf.position(end < buf.limit() ? end + 1 : end);
+
+            int len = end - start;
+            if (len > 0 && buf.get(start + len - 1) == '\r') {
+                len--;
+            }
+            if (len == 0) {
+                continue;
+            }
+
+            parseLine(start, len, timestamps, values, n);
+            n++;
+        }
+
+        return n;
+    }
+
+    /**
+     * @return the number of bytes read from the channel so far, for reporting progress.
+     */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Make sure the buffer holds a whole line from its position.
+     *
+     * @return the index of the '\n' ending the line, or of the end of the buffer if the last
+     *     line of the file has no line ending, or -1 if there are no more lines.
+     */
+    private int nextLineEnd() throws IOException {
+        int from = buf.position();
+        while (true) {
+            for (int i = from; i < buf.limit(); i++) {
+                if (buf.get(i) == '\n') {
+                    return i;
+                }
+            }
+
+            if (eof) {
+                return buf.hasRemaining() ? buf.limit() : -1;
+            }
+
+            // Move the partial line to the start of the buffer, growing it if the line fills it,
+            // and read more of the file after it.
+            from = buf.remaining();
+            if (buf.position() == 0 && buf.limit() == buf.capacity()) {
+                final ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                bigger.put(buf);
+                buf = bigger;
+            } else {
+                buf.compact();
+            }
+
+            final int r = channel.read(buf);
+            buf.flip();
+            if (r < 0) {
+                eof = true;
+            } else {
+                bytesRead += r;
+            }
+        }
+    }
+
+    private void parseLine(final int start, final int len, final long[] timestamps, final double[] values, final int n) {
+        final byte[] b = buf.array();
+        final int off = buf.arrayOffset() + start;
+        final int end = off + len;
+
+        int comma = -1;
+        for (int i = off; i < end; i++) {
+            if (b[i] == ',') {
+                comma = i;
+                break;
+            }
+        }
+        if (comma < 0) {
+            throw new NumberFormatException("No comma in line: " + new String(b, off, len, StandardCharsets.UTF_8));
+        }
+
+        timestamps[n] = parseLong(b, off, comma);
+        values[n] = parseDouble(b, comma + 1, end);
+    }
+
+    private static long parseLong(final byte[] b, final int from, final int to) {
+        int i = from;
+        final boolean negative = i < to && b[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        // 18 digits cannot overflow a long, anything longer is left to Long.parseLong.
+        if (i == to || to - i > 18) {
+            return Long.parseLong(new String(b, from, to - from, StandardCharsets.UTF_8));
+        }
+
+        long v = 0;
+        for (; i < to; i++) {
+            final int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                return Long.parseLong(new String(b, from, to - from, StandardCharsets.UTF_8));
+            }
+            v = v * 10 + d;
+        }
+
+        return negative ? -v : v;
+    }
+
+    /**
+     * Parse a plain decimal number such as -12.345. A number with at most 15 significant
+     * digits is exactly representable as a long, and dividing it by an exactly representable
+     * power of ten gives the correctly rounded double, the same as Double.parseDouble.
+     */
+    private static double parseDouble(final byte[] b, final int from, final int to) {
+        int i = from;
+        final boolean negative = i < to && b[i] == '-';
+        if (negative || (i < to && b[i] == '+')) {
+            i++;
+        }
+
+        long mantissa = 0;
+        boolean sawDigit = false;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < to; i++) {
+            final byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction >= 0) {
+                    fraction++;
+                }
+                if (digits > 15) {
+                    break;
+                }
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                break;
+            }
+        }
+
+        if (i < to || ! sawDigit || fraction > 22) {
+            return Double.parseDouble(new String(b, from, to - from, StandardCharsets.UTF_8));
+        }
+
+        final double v = fraction > 0 ? mantissa / powersOfTen[fraction] : mantissa;
+        return negative ? -v : v;
+    }
+}
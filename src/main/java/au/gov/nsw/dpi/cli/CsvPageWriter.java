@@ -0,0 +1,65 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Writes the pages of a key's readings to its csv file as they arrive, latest page first.
+ *
+ * <p>Each page is encoded by a {@link CsvRowEncoder}. When the file is to be in ascending
+ * order each page is encoded earliest reading first and added to a {@link ReverseSpool}, and
+ * {@link #finish} copies the spool to the file last page first.</p>
+ *
+ * <p>A writer is not thread-safe.</p>
+ */
+final class CsvPageWriter {
+
+    private final Writer out;
+    private final ReverseSpool spool;
+    private final CsvRowEncoder encoder;
+
+    /**
+     * @param out the file.
+     * @param spool the spool to write the pages to for an ascending file, or null to write
+     *     them straight to out in descending order.
+     * @param humanReadable write the timestamps as dates.
+     */
+    CsvPageWriter(final Writer out, final ReverseSpool spool, final boolean humanReadable) {
+        this.out = out;
+        this.spool = spool;
+        encoder = new CsvRowEncoder(humanReadable);
+    }
+
+    /**
+     * Write a page of readings, latest first.
+     *
+     * @throws IOException if the page cannot be written.
+     */
+    void page(final Series page) throws IOException {
+        if (spool != null) {
+            for (int i = page.size() - 1; i >= 0; i--) {
+                encoder.encode(page, i);
+            }
+            spool.addSegment(encoder.chars());
+            encoder.clear();
+        } else {
+            for (int i = 0; i < page.size(); i++) {
+                encoder.encode(page, i);
+            }
+            encoder.writeTo(out);
+        }
+    }
+
+    /**
+     * Copy the spooled pages to the file if it is ascending.
+     *
+     * @throws IOException if the spool cannot be read or the file written.
+     */
+    void finish() throws IOException {
+        if (spool != null) {
+            spool.writeReversed(out);
+        }
+    }
+}
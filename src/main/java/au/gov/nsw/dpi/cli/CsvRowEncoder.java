@@ -0,0 +1,232 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Encodes timeseries entries as CSV rows of the form <code>timestamp,value\r\n</code> into
+ * a reusable character buffer, or as wide rows with a field per key.
+ *
+ * <p>This replaces a String.format call per row. Timestamps are written as digits directly
+ * into the buffer, or when human readable dates are wanted, formatted as
+ * <code>yyyy-MM-dd HH:mm:ss XX</code> in the default timezone. Readings are usually many per
+ * second or at most one per second so the formatted date is remembered and reused until the
+ * second changes.</p>
+ *
+ * <p>An encoder is not thread-safe, each export of a key uses its own.</p>
+ */
+final class CsvRowEncoder {
+
+    // DateTimeFormatter is thread-safe and gives the same output as the SimpleDateFormat
+    // this replaced, apart from local mean time offsets from before a timezone's standard
+    // time was adopted, which is well before any telemetry.
+    private static final DateTimeFormatter hrFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss XX").withZone(ZoneId.systemDefault());
+
+    private final boolean humanReadable;
+
+    private char[] buf = new char[64 * 1024];
+    private int len = 0;
+
+    private long cachedSecond = Long.MIN_VALUE;
+    private char[] cachedDate = new char[0];
+
+    CsvRowEncoder(final boolean humanReadable) {
+        this.humanReadable = humanReadable;
+    }
+
+    /**
+     * Add a reading to the buffer. Readings with empty values are skipped.
+     *
+     * @param series the readings.
+     * @param i the index of the reading to add.
+     */
+    void encode(final Series series, final int i) {
+        if (series.type(i) == Series.LONG) {
+            // Longs are the common case for counters and raw sensor values, write the digits
+            // straight into the buffer.
+            ensureCapacity(64);
+            appendTs(series.ts(i));
+            buf[len++] = ',';
+            appendLong(series.longValue(i));
+            buf[len++] = '\r';
+            buf[len++] = '\n';
+        } else if ( ! series.isBlank(i)) {
+            encode(series.ts(i), series.valueAsString(i));
+        }
+    }
+
+    /**
+     * Add a row to the buffer. Rows with empty values are skipped.
+     *
+     * @param ts the entry timestamp.
+     * @param value the entry value.
+     */
+    void encode(final long ts, final String value) {
+        if (value.trim().isEmpty()) {
+            return;
+        }
+
+        final int vlen = value.length();
+        ensureCapacity(32 + vlen);
+        appendTs(ts);
+        buf[len++] = ',';
+        value.getChars(0, vlen, buf, len);
+        len += vlen;
+        buf[len++] = '\r';
+        buf[len++] = '\n';
+    }
+
+    /**
+     * Start a row of a wide CSV file, which has a column per key. The row is the timestamp
+     * followed by a field for each key added with {@link #appendValue} or {@link #appendEmpty},
+     * and is ended with {@link #endRow}.
+     *
+     * @param ts the timestamp of the row.
+     */
+    void startRow(final long ts) {
+        ensureCapacity(32);
+        appendTs(ts);
+    }
+
+    /**
+     * Add a field holding a reading to the current wide row. Values holding a comma, quote
+     * or line break are quoted.
+     *
+     * @param series the readings.
+     * @param i the index of the reading to add.
+     */
+    void appendValue(final Series series, final int i) {
+        if (series.type(i) == Series.LONG) {
+            ensureCapacity(24);
+            buf[len++] = ',';
+            appendLong(series.longValue(i));
+        } else {
+            final String value = quote(series.valueAsString(i));
+            final int vlen = value.length();
+            ensureCapacity(1 + vlen);
+            buf[len++] = ',';
+            value.getChars(0, vlen, buf, len);
+            len += vlen;
+        }
+    }
+
+    /**
+     * Add an empty field to the current wide row, for a key with no reading at its timestamp.
+     */
+    void appendEmpty() {
+        ensureCapacity(1);
+        buf[len++] = ',';
+    }
+
+    /**
+     * End the current wide row.
+     */
+    void endRow() {
+        ensureCapacity(2);
+        buf[len++] = '\r';
+        buf[len++] = '\n';
+    }
+
+    /**
+     * @return the value as a CSV field, quoted if it holds a comma, quote or line break.
+     */
+    static String quote(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of buffered characters.
+     */
+    int length() {
+        return len;
+    }
+
+    /**
+     * @return a view of the buffered rows. It is only valid until the next call to encode or clear.
+     */
+    CharSequence chars() {
+        return CharBuffer.wrap(buf, 0, len);
+    }
+
+    /**
+     * Write the buffered rows and clear the buffer.
+     *
+     * @param out where to write the rows.
+     * @throws IOException if there is an error writing to out.
+     */
+    void writeTo(final Writer out) throws IOException {
+        out.write(buf, 0, len);
+        len = 0;
+    }
+
+    void clear() {
+        len = 0;
+    }
+
+    /**
+     * Write the timestamp as digits or a human readable date.
+     */
+    private void appendTs(final long ts) {
+        if (humanReadable) {
+            final long second = Math.floorDiv(ts, 1000L);
+            if (second != cachedSecond) {
+                cachedDate = hrFormat.format(Instant.ofEpochMilli(ts)).toCharArray();
+                cachedSecond = second;
+            }
+            ensureCapacity(cachedDate.length);
+            System.arraycopy(cachedDate, 0, buf, len, cachedDate.length);
+            len += cachedDate.length;
+        } else {
+            appendLong(ts);
+        }
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    /**
+     * Write the decimal digits of v, the same as Long.toString.
+     */
+    private void appendLong(final long v) {
+        if (v == Long.MIN_VALUE) {
+            final String s = Long.toString(v);
+            s.getChars(0, s.length(), buf, len);
+            len += s.length();
+            return;
+        }
+
+        long n = v;
+        if (n < 0) {
+            buf[len++] = '-';
+            n = -n;
+        }
+
+        int digits = 1;
+        for (long p = 10; digits < 19 && p <= n; p *= 10) {
+            digits++;
+        }
+
+        int pos = len + digits;
+        len = pos;
+        do {
+            buf[--pos] = (char)('0' + (n % 10));
+            n /= 10;
+        } while (n != 0);
+    }
+}
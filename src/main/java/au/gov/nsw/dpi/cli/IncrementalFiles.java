@@ -0,0 +1,138 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Combines the output of an incremental export with the file written by an earlier run.
+ *
+ * <p>The new data is written to a separate file by the normal export code and then joined
+ * to a copy of the existing file, at the end of an ascending file or the start of a
+ * descending one. The copy replaces the existing file once it is complete so an export that
+ * fails or is interrupted leaves the existing file as it was, ready for the next run.</p>
+ */
+final class IncrementalFiles {
+
+    // The CSV files have no header or footer.
+    static final Format csv = new Format("", "", "");
+
+    // timeseries.json is a JSON array of objects.
+    static final Format json = new Format("[\n", "]\n", ",\n");
+
+    /**
+     * @param header the line naming the columns of a wide CSV file.
+     * @return the format of a wide CSV file, which starts with a header line.
+     */
+    static Format wideCsv(final String header) {
+        return new Format(header, "", "");
+    }
+
+    /**
+     * The text at the start and end of a file, and between two of its entries.
+     */
+    static final class Format {
+        final byte[] header;
+        final byte[] footer;
+        final byte[] separator;
+
+        Format(final String header, final String footer, final String separator) {
+            this.header = header.getBytes(StandardCharsets.UTF_8);
+            this.footer = footer.getBytes(StandardCharsets.UTF_8);
+            this.separator = separator.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private IncrementalFiles() {
+    }
+
+    /**
+     * Join the newly exported entries in update to the existing file. The update file is
+     * deleted once it has been merged.
+     *
+     * @param existing the file written by an earlier run.
+     * @param update the file holding entries newer than any in existing, in the same format.
+     * @param ascending true if the files are in ascending order so update goes at the end of
+     *     existing, false if update goes at the start.
+     * @param format the header, footer and separator of the files.
+     * @throws IOException if the files cannot be read or written.
+     */
+    static void merge(final Path existing, final Path update, final boolean ascending, final Format format) throws IOException {
+        final long updateSize = Files.size(update);
+        if (updateSize == 0) {
+            // No new entries.
+            Files.delete(update);
+            return;
+        }
+
+        if ( ! Files.exists(existing) || Files.size(existing) == 0) {
+            Files.move(update, existing, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        // The merged file is written to a temporary file that replaces existing once it is
+        // complete, so a failure part way through leaves existing as it was.
+        final Path tmp = Files.createTempFile(existing.getParent(), "merge", ".tmp");
+        try {
+            if (ascending) {
+                Files.copy(existing, tmp, StandardCopyOption.REPLACE_EXISTING);
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                     FileChannel in = FileChannel.open(update, StandardOpenOption.READ)) {
+                    final long end = out.size() - format.footer.length;
+                    checkFooter(out, end, format, existing);
+                    out.truncate(end);
+                    out.position(end);
+                    write(out, format.separator);
+                    transfer(in, format.header.length, updateSize - format.header.length, out);
+                }
+            } else {
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                     FileChannel in = FileChannel.open(update, StandardOpenOption.READ);
+                     FileChannel old = FileChannel.open(existing, StandardOpenOption.READ)) {
+                    final long updateEnd = updateSize - format.footer.length;
+                    checkFooter(in, updateEnd, format, update);
+                    transfer(in, 0, updateEnd, out);
+                    write(out, format.separator);
+                    transfer(old, format.header.length, old.size() - format.header.length, out);
+                }
+            }
+
+            Files.move(tmp, existing, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(update);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void checkFooter(final FileChannel ch, final long pos, final Format format, final Path file) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(format.footer.length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+
+        if (pos < 0 || buf.hasRemaining() || ! buf.flip().equals(ByteBuffer.wrap(format.footer))) {
+            throw new IOException("Cannot append to " + file.toString() + ", it does not end as expected");
+        }
+    }
+
+    private static void write(final FileChannel out, final byte[] bytes) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void transfer(final FileChannel in, final long position, final long count, final FileChannel out) throws IOException {
+        long done = 0;
+        while (done < count) {
+            done += in.transferTo(position + done, count - done, out);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Writes the rows of a {@link TimeseriesMerger} as a JSON array in the format of
+ * ThingsBoard's timeseries API, an object per timestamp holding the values of the keys with a
+ * reading at that time.
+ *
+ * <p>The merger runs from the latest timestamp to the earliest. For an ascending file the
+ * objects are collected into batches and added to a {@link ReverseSpool} in reverse, and the
+ * spool is copied to the file last batch first. Readings at or before a key's lastExported
+ * time were written by an earlier incremental export and are left out.</p>
+ *
+ * <p>A writer is not thread-safe.</p>
+ */
+final class JsonRowWriter {
+
+    private final Map<String, Long> exportedBefore;
+    private final int batchRows;
+
+    // The readings written of each key, and the latest timestamp written of each key.
+    private final long[] written;
+    private final Map<String, Long> exported = new HashMap<>();
+
+    /**
+     * @param keys the number of keys merged.
+     * @param exportedBefore the lastExported time of each key exported before, by key name.
+     * @param batchRows the number of objects in each segment added to the spool.
+     */
+    JsonRowWriter(final int keys, final Map<String, Long> exportedBefore, final int batchRows) {
+        this.exportedBefore = exportedBefore;
+        this.batchRows = Math.max(1, batchRows);
+        written = new long[keys];
+    }
+
+    /**
+     * Write the rows of the merger. Nothing is written if there are no readings.
+     *
+     * @param merger the rows.
+     * @param out the file.
+     * @param spool the spool to write the objects through for an ascending file, or null to
+     *     write them to out in descending order.
+     * @throws Exception if a page cannot be fetched or the file cannot be written.
+     */
+    void write(final TimeseriesMerger merger, final Writer out, final ReverseSpool spool) throws Exception {
+        final StringBuilder obj = new StringBuilder();
+        final List<String> batch = new ArrayList<>();
+        final StringBuilder segment = new StringBuilder();
+        boolean first = true;
+
+        while (merger.next()) {
+            final long ts = merger.ts();
+
+            obj.setLength(0);
+            boolean firstValue = true;
+            for (int i = 0; i < merger.size(); i++) {
+                final Series page = merger.series(i);
+                if (page == null || page.isBlank(merger.position(i))) {
+                    continue;
+                }
+
+                final Long lastExported = exportedBefore.get(page.getKey());
+                if (lastExported != null && ts <= lastExported) {
+                    continue;
+                }
+
+                exported.merge(page.getKey(), ts, Math::max);
+                written[i]++;
+
+                if (firstValue) {
+                    obj.append("{\n    \"ts\": ").append(ts).append(",\n    \"values\": {\n");
+                } else {
+                    obj.append(",\n");
+                }
+                firstValue = false;
+                obj.append("        \"").append(page.getKey()).append("\": ").append(page.valueAsString(merger.position(i)));
+            }
+
+            if (firstValue) {
+                // No values at this timestamp.
+                continue;
+            }
+            obj.append("}}\n");
+
+            if (spool != null) {
+                // In the ascending file every object except the first one merged is followed
+                // by a separator.
+                if ( ! first) {
+                    obj.append(",\n");
+                }
+                batch.add(obj.toString());
+                if (batch.size() >= batchRows) {
+                    spool.addReversed(batch, segment);
+                }
+            } else {
+                out.write(first ? "[\n" : ",\n");
+                out.append(obj);
+            }
+
+            first = false;
+        }
+
+        if (spool != null) {
+            spool.addReversed(batch, segment);
+            if ( ! first) {
+                out.write("[\n");
+                spool.writeReversed(out);
+            }
+        }
+
+        if ( ! first) {
+            out.write("]\n");
+        }
+    }
+
+    /**
+     * @return the number of readings written of the key with the given index.
+     */
+    long written(final int key) {
+        return written[key];
+    }
+
+    /**
+     * @return the latest timestamp written of each key with readings written, by key name.
+     */
+    Map<String, Long> exported() {
+        return exported;
+    }
+}
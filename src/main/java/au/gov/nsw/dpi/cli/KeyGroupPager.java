@@ -0,0 +1,155 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Reads the pages of timeseries entries of several keys with one request for all of them,
+ * passing each key's pages to a handler from latest to earliest.
+ *
+ * <p>ThingsBoard applies the limit of a request to each key separately, so one request
+ * returns a page for every key in it. Each key has its own cursor, the inclusive end of the
+ * part of its range still to be read, because keys with different reporting rates move
+ * through their ranges at different speeds. A request reaches up to the latest cursor, and a
+ * key whose cursor is further back gets some entries it already has, which are dropped. A key
+ * is left out of a request while its last page shows that less than half of what the request
+ * would return for it is new, and once all its entries have been read.</p>
+ *
+ * <p>The pages of different keys are interleaved but each key's pages are passed to the
+ * handler in order, on the calling thread.</p>
+ */
+final class KeyGroupPager {
+
+    /**
+     * Fetches a page of entries for each of a set of keys.
+     */
+    interface Fetcher {
+        /**
+         * @param keys the keys to fetch.
+         * @param startTs entries must be later than this time.
+         * @param endTs entries must be at or before this time.
+         * @param limit the maximum number of entries to return for each key.
+         * @return the entries of each key in the range, latest first, by key name. Keys with
+         *     no entries may be left out.
+         * @throws Exception if the pages cannot be fetched.
+         */
+        Map<String, Series> fetch(List<String> keys, long startTs, long endTs, int limit) throws Exception;
+    }
+
+    /**
+     * Receives the non-empty pages of each key, latest page first.
+     */
+    interface PageHandler {
+        /**
+         * @param key the index of the page's key in the list given to {@link KeyGroupPager#fetch}.
+         * @param page the entries, latest first.
+         * @throws Exception if the page cannot be handled.
+         */
+        void page(int key, Series page) throws Exception;
+    }
+
+    private final int limit;
+
+    /**
+     * @param limit the page size of each key.
+     */
+    KeyGroupPager(final int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Fetch all entries of each key i where earliest[i] &lt; ts &lt;= latest.
+     *
+     * @param keys the keys to fetch.
+     * @param earliest the exclusive start of each key's range.
+     * @param latest the inclusive end of the ranges.
+     * @param fetcher fetches the pages.
+     * @param handler receives the pages.
+     * @throws Exception if a page cannot be fetched or the handler throws an exception.
+     */
+    void fetch(final List<String> keys, final long[] earliest, final long latest, final Fetcher fetcher, final PageHandler handler) throws Exception {
+        final int n = keys.size();
+
+        // The inclusive end of the part of each key's range still to be read.
+        final long[] hi = new long[n];
+        Arrays.fill(hi, latest);
+
+        // The time covered by each key's last full page. A request that reaches less than
+        // half of that past the key's cursor returns mostly entries the key already has.
+        final long[] width = new long[n];
+        Arrays.fill(width, Long.MAX_VALUE);
+
+        final boolean[] done = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            done[i] = latest <= earliest[i];
+        }
+
+        final List<String> requestKeys = new ArrayList<>(n);
+        final int[] requested = new int[n];
+
+        while (true) {
+            long endTs = Long.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                if ( ! done[i]) {
+                    endTs = Math.max(endTs, hi[i]);
+                }
+            }
+            if (endTs == Long.MIN_VALUE) {
+                return;
+            }
+
+            requestKeys.clear();
+            int count = 0;
+            long startTs = Long.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if ( ! done[i] && endTs - hi[i] <= width[i] / 2) {
+                    requestKeys.add(keys.get(i));
+                    requested[count++] = i;
+                    startTs = Math.min(startTs, earliest[i]);
+                }
+            }
+
+            final Map<String, Series> pages = fetcher.fetch(requestKeys, startTs, endTs, limit);
+
+            for (int r = 0; r < count; r++) {
+                final int i = requested[r];
+                final Series raw = pages.get(keys.get(i));
+                final int sz = raw == null ? 0 : raw.size();
+
+                // Drop the entries after the key's cursor, which it already has, and any at or
+                // before the start of its own range.
+                int from = 0;
+                while (from < sz && raw.ts(from) > hi[i]) {
+                    from++;
+                }
+                int to = sz;
+                while (to > from && raw.ts(to - 1) <= earliest[i]) {
+                    to--;
+                }
+                if (to > from) {
+                    handler.page(i, from == 0 && to == sz ? raw : raw.range(from, to));
+                }
+
+                // Less than a full set of readings means we now have the earliest reading.
+                if (sz < limit) {
+                    done[i] = true;
+                    continue;
+                }
+
+                final long min = raw.earliestTs();
+                if (min <= earliest[i]) {
+                    done[i] = true;
+                    continue;
+                }
+
+                // Don't start on the same reading in the next request.
+                hi[i] = Math.min(hi[i], min - 1);
+                width[i] = endTs - min + 1;
+            }
+        }
+    }
+}
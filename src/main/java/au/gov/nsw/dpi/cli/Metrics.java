@@ -0,0 +1,259 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Counts what a run does so the time it takes can be accounted for.
+ *
+ * <p>Requests to ThingsBoard and Ubidots are timed by call type into histograms with
+ * power-of-two millisecond buckets, along with the number that failed and were retried.
+ * Rows and bytes are counted per device and key. Gauges such as queue depths are read each
+ * time the metrics are sampled, which the CLI does every second, keeping the largest value
+ * seen.</p>
+ *
+ * <p>All methods may be called from any thread.</p>
+ */
+final class Metrics {
+
+    // Bucket i holds latencies below 2^i ms, the last bucket holds everything longer.
+    private static final int buckets = 24;
+
+    /**
+     * The latencies of one type of request.
+     */
+    static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(buckets);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+
+        /**
+         * Record the latency of a request that got a response.
+         */
+        void record(final long nanos) {
+            final long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+            final int bucket = Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(ms));
+            counts.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Count a request that failed.
+         */
+        void error() {
+            errors.increment();
+        }
+
+        /**
+         * Count a request that is being made again after failing.
+         */
+        void retry() {
+            retries.increment();
+        }
+
+        /**
+         * @return the upper bound in ms of the bucket holding the given fraction of the
+         *     requests, or the longest latency if that is less.
+         */
+        private long percentile(final double fraction) {
+            final long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+
+            final long rank = (long)Math.ceil(n * fraction);
+            final long maxMs = TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+            long seen = 0;
+            for (int i = 0; i < buckets - 1; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, maxMs);
+                }
+            }
+            return maxMs;
+        }
+
+        private Map<String, Object> report() {
+            final long n = count.sum();
+            final Map<String, Object> r = new TreeMap<>();
+            r.put("count", n);
+            r.put("errors", errors.sum());
+            r.put("retries", retries.sum());
+            r.put("meanMs", n > 0 ? TimeUnit.NANOSECONDS.toMillis(totalNanos.sum() / n) : 0);
+            r.put("p50Ms", percentile(0.5));
+            r.put("p95Ms", percentile(0.95));
+            r.put("p99Ms", percentile(0.99));
+            r.put("maxMs", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+
+            // The count of requests in each bucket, by the bucket's upper bound.
+            final Map<String, Long> histogram = new TreeMap<>((a, b) -> Long.compare(bound(a), bound(b)));
+            for (int i = 0; i < buckets; i++) {
+                final long c = counts.get(i);
+                if (c > 0) {
+                    histogram.put(i < buckets - 1 ? "<" + (1L << i) : ">=" + (1L << (buckets - 2)), c);
+                }
+            }
+            r.put("histogramMs", histogram);
+            return r;
+        }
+
+        private static long bound(final String label) {
+            return label.startsWith("<") ? Long.parseLong(label.substring(1)) : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The rows and bytes of one key of a device.
+     */
+    private static final class Counter {
+        final LongAdder rows = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final long started = System.currentTimeMillis();
+    private final Map<String, Histogram> requests = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Counter>> devices = new ConcurrentHashMap<>();
+    private final LongAdder totalRows = new LongAdder();
+    private final LongAdder totalBytes = new LongAdder();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Long> gaugeMax = new ConcurrentHashMap<>();
+
+    /**
+     * @param name the server and call type, such as thingsboard.getTimeseries.
+     * @return the histogram of the call type's latencies.
+     */
+    Histogram request(final String name) {
+        return requests.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Count rows written or uploaded.
+     *
+     * @param device the device name.
+     * @param key the key or variable name.
+     * @param rows the number of rows.
+     * @param bytes the number of bytes the rows took, 0 if not known.
+     */
+    void rows(final String device, final String key, final long rows, final long bytes) {
+        final Counter c = devices.computeIfAbsent(device, k -> new ConcurrentHashMap<>()).computeIfAbsent(key, k -> new Counter());
+        c.rows.add(rows);
+        c.bytes.add(bytes);
+        totalRows.add(rows);
+        totalBytes.add(bytes);
+    }
+
+    /**
+     * Add a value, such as the depth of a queue, to sample when the metrics are printed or reported.
+     */
+    void gauge(final String name, final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Read the gauges, remembering the largest value each has had.
+     *
+     * @return the current values of the gauges.
+     */
+    Map<String, Long> sample() {
+        final Map<String, Long> values = new TreeMap<>();
+        for (final Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            final long v = g.getValue().getAsLong();
+            values.put(g.getKey(), v);
+            gaugeMax.merge(g.getKey(), v, Math::max);
+        }
+        return values;
+    }
+
+    /**
+     * @return a one line summary of the run so far, for printing while it runs.
+     */
+    String summary() {
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - started);
+        final long rows = totalRows.sum();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(rows).append(" rows, ").append(totalBytes.sum() / 1024).append(" KB, ")
+          .append(rows * 1000 / elapsedMs).append(" rows/s");
+
+        for (final Map.Entry<String, Histogram> e : new TreeMap<>(requests).entrySet()) {
+            final Histogram h = e.getValue();
+            sb.append("; ").append(e.getKey()).append(' ').append(h.count.sum())
+              .append(" p95 ").append(h.percentile(0.95)).append(" ms");
+            if (h.retries.sum() > 0) {
+                sb.append(' ').append(h.retries.sum()).append(" retries");
+            }
+        }
+
+        for (final Map.Entry<String, Long> g : sample().entrySet()) {
+            sb.append("; ").append(g.getKey()).append(' ').append(g.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the metrics of the run as JSON.
+     *
+     * @param file the file to write, which is created or truncated.
+     * @throws IOException if the file cannot be written.
+     */
+    void write(final Path file) throws IOException {
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - started);
+        final Map<String, Long> current = sample();
+
+        final Map<String, Object> report = new TreeMap<>();
+        report.put("started", started);
+        report.put("elapsedMs", elapsedMs);
+        report.put("rows", totalRows.sum());
+        report.put("bytes", totalBytes.sum());
+        report.put("rowsPerSecond", totalRows.sum() * 1000 / elapsedMs);
+
+        final Map<String, Object> requestReport = new TreeMap<>();
+        for (final Map.Entry<String, Histogram> e : requests.entrySet()) {
+            requestReport.put(e.getKey(), e.getValue().report());
+        }
+        report.put("requests", requestReport);
+
+        final Map<String, Object> deviceReport = new TreeMap<>();
+        for (final Map.Entry<String, Map<String, Counter>> d : devices.entrySet()) {
+            final Map<String, Object> keys = new TreeMap<>();
+            for (final Map.Entry<String, Counter> k : d.getValue().entrySet()) {
+                final Map<String, Long> c = new TreeMap<>();
+                c.put("rows", k.getValue().rows.sum());
+                c.put("bytes", k.getValue().bytes.sum());
+                keys.put(k.getKey(), c);
+            }
+            deviceReport.put(d.getKey(), keys);
+        }
+        report.put("devices", deviceReport);
+
+        final Map<String, Object> gaugeReport = new TreeMap<>();
+        for (final Map.Entry<String, Long> g : current.entrySet()) {
+            final Map<String, Long> v = new TreeMap<>();
+            v.put("last", g.getValue());
+            v.put("max", gaugeMax.get(g.getKey()));
+            gaugeReport.put(g.getKey(), v);
+        }
+        report.put("gauges", gaugeReport);
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(report, writer);
+        }
+    }
+}
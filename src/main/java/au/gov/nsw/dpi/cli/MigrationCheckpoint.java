@@ -0,0 +1,152 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import com.google.gson.Gson;
+
+/**
+ * Records how many readings of a variable have been uploaded to Ubidots so an interrupted
+ * migration can be resumed without uploading them again.
+ *
+ * <p>Readings are counted in the order they are read from the source file, which is the
+ * order they are uploaded in, so a rerun can skip the counted readings as it reads the same
+ * file. The file is rewritten after every successful batch, by writing a temporary file and
+ * moving it over the old one so an interruption cannot leave a partly written checkpoint.</p>
+ *
+ * <p>A count only means something for the file it was made with, and an incremental export
+ * can change that file, such as by adding newer readings at the start of a descending file.
+ * So a resumed run checks the checkpoint was made with the same source file and that the
+ * last reading it skips has the timestamp of the last reading uploaded, and refuses to go on
+ * if either differs.</p>
+ */
+final class MigrationCheckpoint {
+
+    /**
+     * Thrown when a checkpoint does not match the file being migrated.
+     */
+    static final class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MismatchException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The content of the checkpoint file.
+     */
+    private static final class State {
+        String source;
+        long uploaded;
+        long lastTs;
+    }
+
+    private final Path file;
+    private final State state;
+    private final long resumeFrom;
+    // The timestamp of the last reading uploaded by earlier runs.
+    private final long resumeTs;
+
+    // Only used by the thread reading the source file.
+    private long seen = 0;
+
+    private MigrationCheckpoint(final Path file, final State state) {
+        this.file = file;
+        this.state = state;
+        resumeFrom = state.uploaded;
+        resumeTs = state.lastTs;
+    }
+
+    /**
+     * @param file the checkpoint file.
+     * @param source the file the readings are read from, recorded in the checkpoint.
+     * @param resume true to continue from the count in an existing checkpoint file, false to
+     *     start from the first reading.
+     * @return the checkpoint.
+     * @throws MismatchException if the existing checkpoint was made with another source file.
+     * @throws IOException if an existing checkpoint file cannot be read.
+     */
+    static MigrationCheckpoint open(final Path file, final Path source, final boolean resume) throws IOException {
+        State state = null;
+        if (resume && Files.isRegularFile(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                state = new Gson().fromJson(reader, State.class);
+            }
+        }
+
+        if (state != null && state.uploaded > 0 && ! sameFile(state.source, source)) {
+            throw new MismatchException("Cannot resume from " + file + ", it was made with " + state.source + " rather than " + source
+                + ". Delete the checkpoint or run without --resume.");
+        }
+
+        if (state == null) {
+            state = new State();
+        }
+        state.source = source.toString();
+        return new MigrationCheckpoint(file, state);
+    }
+
+    private static boolean sameFile(final String recorded, final Path source) {
+        return recorded != null && Paths.get(recorded).toAbsolutePath().normalize().equals(source.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return the number of readings uploaded by earlier runs.
+     */
+    long resumeFrom() {
+        return resumeFrom;
+    }
+
+    /**
+     * Count a reading read from the source file.
+     *
+     * @param ts the timestamp of the reading.
+     * @return true if the reading was uploaded by an earlier run and should be skipped.
+     * @throws MismatchException if this is the last reading to skip and it is not the last
+     *     reading uploaded, which means the file has changed since the checkpoint was made.
+     */
+    boolean skip(final long ts) throws MismatchException {
+        final long i = seen++;
+        if (i >= resumeFrom) {
+            return false;
+        }
+        if (i == resumeFrom - 1 && ts != resumeTs) {
+            throw new MismatchException("Cannot resume from " + file + ", reading " + resumeFrom + " of " + state.source + " is at " + ts
+                + " rather than " + resumeTs + " so the file has changed. Delete the checkpoint or run without --resume.");
+        }
+        return true;
+    }
+
+    /**
+     * @return true if fewer readings have been read than earlier runs uploaded, which at the
+     *     end of the file means it has fewer readings than when the checkpoint was made.
+     */
+    boolean shortOfCheckpoint() {
+        return seen < resumeFrom;
+    }
+
+    /**
+     * Record that a batch of readings has been uploaded.
+     *
+     * @param count the number of readings in the batch.
+     * @param lastTs the timestamp of the last reading in the batch.
+     * @throws IOException if the checkpoint file cannot be written.
+     */
+    synchronized void uploaded(final int count, final long lastTs) throws IOException {
+        state.uploaded += count;
+        state.lastTs = lastTs;
+
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            new Gson().toJson(state, writer);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,190 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+/**
+ * Controls the rate and concurrency of the requests made to a server.
+ *
+ * <p>Every request waits for a token from a {@link TokenBucket} and for a free concurrency
+ * slot. The number of slots adapts AIMD-style: after each window of requests the 95th
+ * percentile latency is compared to the best seen so far. While it stays flat one more slot
+ * is allowed, up to the maximum. When it rises, or the server answers with 429 Too Many
+ * Requests or a 5xx error, the number of slots is cut. Requests that fail that way, or
+ * with a connection error, are retried with exponential backoff.</p>
+ *
+ * <p>The latency, failures and retries of each type of request are recorded in the run's
+ * {@link Metrics}.</p>
+ *
+ * <p>One limiter is shared by all the threads talking to a server.</p>
+ */
+final class RequestLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestLimiter.class);
+
+    // Latency samples per adjustment of the concurrency limit.
+    private static final int window = 32;
+
+    private static final int maxRetries = 4;
+    private static final long initialBackoffMs = 1000;
+
+    private final String name;
+    private final Metrics metrics;
+    private final TokenBucket bucket;
+    private final int maxConcurrency;
+
+    // Guarded by this.
+    private int limit;
+    private int inFlight = 0;
+    private final long[] latencies = new long[window];
+    private int samples = 0;
+    private long baselineP95 = Long.MAX_VALUE;
+
+    /**
+     * @param name used in log messages and, in lower case, to prefix the names of the request metrics.
+     * @param metrics records the requests.
+     * @param rate the maximum number of requests per second, zero or less for no limit.
+     * @param maxConcurrency the maximum number of requests in progress at the same time.
+     */
+    RequestLimiter(final String name, final Metrics metrics, final double rate, final int maxConcurrency) {
+        this.name = name;
+        this.metrics = metrics;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        bucket = new TokenBucket(rate, Math.max(1.0, rate));
+
+        // Start low and let the latency show how much the server can take.
+        limit = Math.min(this.maxConcurrency, 4);
+    }
+
+    /**
+     * Make a request once the rate and concurrency limits allow it.
+     *
+     * @param operation the type of request, such as getTimeseries, for the metrics.
+     * @param request the request.
+     * @return the result of the request.
+     * @throws Exception the exception thrown by the request if it cannot be retried or the
+     *     retries have been used up.
+     */
+    <T> T call(final String operation, final Callable<T> request) throws Exception {
+        final Metrics.Histogram latency = metrics.request(name.toLowerCase(Locale.ROOT) + "." + operation);
+        long backoff = initialBackoffMs;
+        for (int attempt = 0; ; attempt++) {
+            if (attempt > 0) {
+                latency.retry();
+            }
+            bucket.acquire();
+            acquireSlot();
+
+            final long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                final T result = request.call();
+                ok = true;
+                latency.record(System.nanoTime() - start);
+                return result;
+            } catch (final HttpStatusCodeException e) {
+                latency.error();
+                final int status = e.getRawStatusCode();
+                if (status != 429 && status < 500) {
+                    throw e;
+                }
+
+                overloaded(status);
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                logger.warn("{} request failed with status {}, retrying in {} ms", name, status, backoff);
+            } catch (final ResourceAccessException e) {
+                latency.error();
+                overloaded(0);
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                logger.warn("{} request failed: {}, retrying in {} ms", name, e.getMessage(), backoff);
+            } catch (final Exception e) {
+                latency.error();
+                throw e;
+            } finally {
+                releaseSlot(ok ? System.nanoTime() - start : -1);
+            }
+
+            bucket.pause(backoff);
+            Thread.sleep(backoff);
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * @return the current concurrency limit.
+     */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of requests in progress.
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private synchronized void acquireSlot() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * @param latencyNanos the request latency, or a negative value if it failed.
+     */
+    private synchronized void releaseSlot(final long latencyNanos) {
+        inFlight--;
+        notifyAll();
+
+        if (latencyNanos < 0) {
+            return;
+        }
+
+        latencies[samples++] = latencyNanos;
+        if (samples < window) {
+            return;
+        }
+        samples = 0;
+
+        final long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        final long p95 = sorted[(int)Math.ceil(window * 0.95) - 1];
+
+        // Let the baseline drift up slowly so a server that has become slower for good
+        // does not keep the limit at its minimum.
+        baselineP95 = Math.min(p95, baselineP95 == Long.MAX_VALUE ? p95 : baselineP95 + baselineP95 / 100);
+
+        if (p95 > baselineP95 * 2) {
+            setLimit(limit - Math.max(1, limit / 4), "p95 latency rose to " + TimeUnit.NANOSECONDS.toMillis(p95) + " ms");
+        } else if (p95 <= baselineP95 + baselineP95 / 2 && limit < maxConcurrency) {
+            setLimit(limit + 1, "p95 latency steady at " + TimeUnit.NANOSECONDS.toMillis(p95) + " ms");
+        }
+    }
+
+    private synchronized void overloaded(final int status) {
+        setLimit(limit / 2, status > 0 ? "status " + status : "connection error");
+        samples = 0;
+    }
+
+    private void setLimit(final int newLimit, final String reason) {
+        final int l = Math.max(1, Math.min(maxConcurrency, newLimit));
+        if (l != limit) {
+            logger.debug("{} concurrency limit {} -> {}: {}", name, limit, l, reason);
+            limit = l;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A temporary file that text segments are appended to, and which can then be copied
+ * out with the segments in reverse order.
+ *
+ * <p>ThingsBoard returns timeseries pages from latest to earliest. To write a file in
+ * ascending order without holding every page in memory, each page is written to the
+ * spool in ascending order as it arrives and the spool is copied to the output last
+ * segment first. Only one segment is held in memory at a time.</p>
+ */
+class ReverseSpool implements Closeable {
+
+    private final Path file;
+    private final FileChannel channel;
+
+    // offsets[i] is the file position of the end of segment i.
+    private long[] offsets = new long[64];
+    private int count = 0;
+
+    /**
+     * Create a spool file in the given directory.
+     *
+     * @param dir the directory to create the spool file in.
+     * @throws IOException if the spool file cannot be created.
+     */
+    ReverseSpool(final Path dir) throws IOException {
+        file = Files.createTempFile(dir, "spool", ".tmp");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Append a segment to the spool. Empty segments are ignored.
+     *
+     * @param text the segment text.
+     * @throws IOException if the segment cannot be written.
+     */
+    void addSegment(final CharSequence text) throws IOException {
+        if (text.length() < 1) {
+            return;
+        }
+
+        final ByteBuffer buf = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = channel.position();
+    }
+
+    /**
+     * Append a batch of strings to the spool as one segment, last string first, and clear
+     * the batch.
+     *
+     * @param batch the strings, which are in descending order.
+     * @param segment a buffer to build the segment in.
+     * @throws IOException if the segment cannot be written.
+     */
+    void addReversed(final List<String> batch, final StringBuilder segment) throws IOException {
+        segment.setLength(0);
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            segment.append(batch.get(i));
+        }
+        addSegment(segment);
+        batch.clear();
+    }
+
+    /**
+     * @return the number of segments in the spool.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Write the segments to the given Writer, last segment first. The text within each
+     * segment is written as it was added.
+     *
+     * @param out the Writer to copy the segments to.
+     * @throws IOException if there is an error reading the spool or writing to out.
+     */
+    void writeReversed(final Writer out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(0);
+        for (int i = count - 1; i >= 0; i--) {
+            final long start = i == 0 ? 0 : offsets[i - 1];
+            final int len = (int)(offsets[i] - start);
+            if (buf.capacity() < len) {
+                buf = ByteBuffer.allocate(len);
+            }
+
+            buf.clear().limit(len);
+            long pos = start;
+            while (buf.hasRemaining()) {
+                final int n = channel.read(buf, pos);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of spool file " + file.toString());
+                }
+                pos += n;
+            }
+
+            buf.flip();
+            out.append(StandardCharsets.UTF_8.decode(buf));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
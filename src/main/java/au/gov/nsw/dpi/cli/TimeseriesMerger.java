@@ -0,0 +1,156 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Merges the pages of several keys into rows of entries that share a timestamp, latest
+ * timestamp first.
+ *
+ * <p>Each source is the pages of a single key so its entries are already in descending
+ * timestamp order. The merger keeps one page per key and takes the next page of a key only
+ * when it has used the last one, so a row is complete as soon as every other key has moved
+ * on to an earlier timestamp and memory use depends on the page size, not the length of
+ * the history.</p>
+ */
+final class TimeseriesMerger implements AutoCloseable {
+
+    private final List<TimeseriesPager.Pages> sources;
+    private final PriorityQueue<Cursor> heads;
+    private final Cursor[] cursors;
+    private final Series[] row;
+    private final int[] rowIndex;
+    private long ts;
+    private boolean started = false;
+
+    /**
+     * @param sources the pages of each key. The merger closes them when it is closed.
+     */
+    TimeseriesMerger(final List<TimeseriesPager.Pages> sources) {
+        this.sources = sources;
+        cursors = new Cursor[sources.size()];
+        row = new Series[sources.size()];
+        rowIndex = new int[sources.size()];
+
+        // Latest timestamp first, ties in key order.
+        heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            final int c = Long.compare(b.ts(), a.ts());
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        });
+    }
+
+    /**
+     * Move to the next, earlier, timestamp.
+     *
+     * @return false if there are no more entries.
+     * @throws Exception if a page cannot be fetched.
+     */
+    boolean next() throws Exception {
+        if ( ! started) {
+            started = true;
+            for (int i = 0; i < sources.size(); i++) {
+                final Cursor c = new Cursor(i, sources.get(i));
+                cursors[i] = c;
+                if (c.advance()) {
+                    heads.add(c);
+                }
+            }
+        }
+
+        Arrays.fill(row, null);
+        if (heads.isEmpty()) {
+            return false;
+        }
+
+        ts = heads.peek().ts();
+        while ( ! heads.isEmpty() && heads.peek().ts() == ts) {
+            final Cursor c = heads.poll();
+            row[c.index] = c.page;
+            rowIndex[c.index] = c.pos;
+            if (c.advance()) {
+                heads.add(c);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the current row.
+     */
+    long ts() {
+        return ts;
+    }
+
+    /**
+     * @param index the index of the key in the list of sources.
+     * @return the page holding the key's reading at the current timestamp, or null if it has none.
+     */
+    Series series(final int index) {
+        return row[index];
+    }
+
+    /**
+     * @param index the index of the key in the list of sources.
+     * @return the position of the key's reading in the page returned by {@link #series}.
+     */
+    int position(final int index) {
+        return rowIndex[index];
+    }
+
+    /**
+     * @param index the index of the key in the list of sources.
+     * @return the page the key's next reading is read from, or null if it has no more readings
+     *     or {@link #next} has not been called.
+     */
+    Series page(final int index) {
+        return cursors[index] == null ? null : cursors[index].page;
+    }
+
+    int size() {
+        return row.length;
+    }
+
+    @Override
+    public void close() {
+        for (final TimeseriesPager.Pages p : sources) {
+            p.close();
+        }
+    }
+
+    /**
+     * The position in the pages of a single key.
+     */
+    private static final class Cursor {
+        private final int index;
+        private final TimeseriesPager.Pages pages;
+        private Series page = null;
+        private int pos = 0;
+
+        Cursor(final int index, final TimeseriesPager.Pages pages) {
+            this.index = index;
+            this.pages = pages;
+        }
+
+        long ts() {
+            return page.ts(pos);
+        }
+
+        /**
+         * @return false if the key has no more entries.
+         */
+        boolean advance() throws Exception {
+            if (page != null && pos + 1 < page.size()) {
+                pos++;
+                return true;
+            }
+
+            page = pages.next();
+            pos = 0;
+            return page != null;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Reads the pages of timeseries entries for a time range, passing them to a handler from
+ * latest to earliest.
+ *
+ * <p>ThingsBoard returns entries where startTs &lt; ts &lt;= endTs, latest first. Normally
+ * each page request has to wait for the previous one because the earliest timestamp of
+ * a page is the end of the next. When maxShards is greater than 1 the pager uses the first
+ * page to estimate how dense the readings are, splits the rest of the range into time
+ * shards of roughly pagesPerShard pages each and fetches up to maxShards shards at the same
+ * time. The pages are still given to the handler in order, on the calling thread, so the
+ * handler sees the same sequence of pages as a serial fetch.</p>
+ *
+ * <p>Shards are planned from the latest time backwards. After maxPlannedShards shards the
+ * remaining range, which may go back to 1970 if no start time was given, becomes one final
+ * shard that is paged serially.</p>
+ */
+class TimeseriesPager {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeseriesPager.class);
+
+    private static final int maxPlannedShards = 64;
+
+    /**
+     * Fetches a single page of entries.
+     */
+    interface Fetcher {
+        /**
+         * @param startTs entries must be later than this time.
+         * @param endTs entries must be at or before this time.
+         * @param limit the maximum number of entries to return.
+         * @return the entries in the range, latest first.
+         * @throws Exception if the page cannot be fetched.
+         */
+        Series fetch(long startTs, long endTs, int limit) throws Exception;
+    }
+
+    /**
+     * Receives the non-empty pages of entries, latest page first.
+     */
+    interface PageHandler {
+        void page(Series page) throws Exception;
+    }
+
+    // Marks the end of a shard's pages in its queue.
+    private static final Object endOfShard = new Object();
+
+    private final ExecutorService executor;
+    private final int limit;
+    private final int maxShards;
+    private final int pagesPerShard;
+
+    /**
+     * @param executor runs the shard fetches. It must not be the executor the caller of
+     *     {@link #fetch} is running on unless it has enough threads for both.
+     * @param limit the page size.
+     * @param maxShards the maximum number of shards to fetch at the same time, 1 for a serial fetch.
+     * @param pagesPerShard the target number of pages in each shard. This is also the number
+     *     of pages a shard can fetch before they are taken by the handler.
+     */
+    TimeseriesPager(final ExecutorService executor, final int limit, final int maxShards, final int pagesPerShard) {
+        this.executor = executor;
+        this.limit = limit;
+        this.maxShards = maxShards;
+        this.pagesPerShard = pagesPerShard;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Fetch all entries where earliest &lt; ts &lt;= latest.
+     *
+     * @param earliest the exclusive start of the range.
+     * @param latest the inclusive end of the range.
+     * @param fetcher fetches a single page.
+     * @param handler receives the pages, latest first.
+     * @throws Exception if a page cannot be fetched or the handler throws an exception.
+     */
+    void fetch(final long earliest, final long latest, final Fetcher fetcher, final PageHandler handler) throws Exception {
+        try (Pages pages = open(earliest, latest, fetcher)) {
+            Series page;
+            while ((page = pages.next()) != null) {
+                handler.page(page);
+            }
+        }
+    }
+
+    /**
+     * Start reading the entries where earliest &lt; ts &lt;= latest. The caller takes each
+     * page, latest first, by calling {@link Pages#next}. This allows several ranges, such as
+     * one per key, to be read in step with each other.
+     *
+     * @param earliest the exclusive start of the range.
+     * @param latest the inclusive end of the range.
+     * @param fetcher fetches a single page.
+     * @return the pages of the range. The caller must close it to stop any shard fetches still running.
+     */
+    Pages open(final long earliest, final long latest, final Fetcher fetcher) {
+        return new Pages(earliest, latest, fetcher);
+    }
+
+    /**
+     * The pages of a time range, taken one at a time from latest to earliest.
+     */
+    class Pages implements AutoCloseable {
+        private final long earliest;
+        private final Fetcher fetcher;
+
+        // The inclusive end of the part of the range still to be fetched.
+        private long hi;
+        private boolean started = false;
+        private boolean done = false;
+
+        // Only used once the first page shows the range is worth sharding.
+        private Deque<Shard> running = null;
+        private long span;
+        private int planned = 0;
+
+        private Pages(final long earliest, final long latest, final Fetcher fetcher) {
+            this.earliest = earliest;
+            this.hi = latest;
+            this.fetcher = fetcher;
+        }
+
+        /**
+         * @return the next page of entries, latest first, or null if there are no more.
+         * @throws Exception if a page cannot be fetched.
+         */
+        Series next() throws Exception {
+            if (running != null) {
+                return nextFromShards();
+            }
+
+            if (done || hi <= earliest) {
+                return null;
+            }
+
+            final Series tsl = fetcher.fetch(earliest, hi, limit);
+            final int sz = tsl.size();
+
+            // Less than a full set of readings means we now have the earliest reading.
+            if (sz < limit) {
+                done = true;
+                return sz > 0 ? tsl : null;
+            }
+
+            // Don't start on the same reading in the next batch.
+            final long min = tsl.earliestTs();
+            hi = min - 1;
+
+            if ( ! started && maxShards > 1) {
+                final long max = tsl.latestTs();
+
+                // The first page covered max - min ms, so a shard of pagesPerShard pages should cover
+                // about pagesPerShard times that.
+                final long width = max - min + 1;
+                span = width > Long.MAX_VALUE / pagesPerShard ? Long.MAX_VALUE : width * pagesPerShard;
+                logger.debug("Sharding remaining range using a span of {} ms", span);
+                running = new ArrayDeque<>(maxShards);
+            }
+
+            started = true;
+            return tsl;
+        }
+
+        private Series nextFromShards() throws Exception {
+            while (true) {
+                while (running.size() < maxShards && hi > earliest) {
+                    final long lo = (planned == maxPlannedShards - 1 || hi - earliest <= span) ? earliest : hi - span;
+                    final Shard shard = new Shard(lo, hi, fetcher);
+                    shard.future = executor.submit(shard);
+                    running.addLast(shard);
+                    planned++;
+                    hi = lo;
+                }
+
+                final Shard shard = running.peekFirst();
+                if (shard == null) {
+                    return null;
+                }
+
+                final Object o = shard.pages.take();
+                if (o instanceof Exception) {
+                    throw (Exception)o;
+                }
+                if (o != endOfShard) {
+                    return (Series)o;
+                }
+
+                running.removeFirst();
+                try {
+                    shard.future.get();
+                } catch (final ExecutionException e) {
+                    throw (Exception)e.getCause();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (running != null) {
+                for (final Shard s : running) {
+                    s.future.cancel(true);
+                }
+                running.clear();
+            }
+        }
+    }
+
+    /**
+     * Fetch all entries where lo &lt; ts &lt;= hi one page at a time.
+     */
+    private void fetchSerially(final long lo, final long hi, final Fetcher fetcher, final PageHandler handler) throws Exception {
+        long end = hi;
+        while (end > lo) {
+            final Series tsl = fetcher.fetch(lo, end, limit);
+            final int sz = tsl.size();
+            if (sz > 0) {
+                handler.page(tsl);
+
+                // Don't start on the same reading in the next batch.
+                end = tsl.earliestTs() - 1;
+            }
+
+            // Less than a full set of readings means we now have the earliest reading.
+            if (sz < limit) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Fetches the pages of one time shard into a bounded queue.
+     */
+    private class Shard implements Runnable {
+        private final long lo;
+        private final long hi;
+        private final Fetcher fetcher;
+        private final BlockingQueue<Object> pages = new ArrayBlockingQueue<>(pagesPerShard + 1);
+        private Future<?> future;
+
+        Shard(final long lo, final long hi, final Fetcher fetcher) {
+            this.lo = lo;
+            this.hi = hi;
+            this.fetcher = fetcher;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    fetchSerially(lo, hi, fetcher, pages::put);
+                    pages.put(endOfShard);
+                } catch (final InterruptedException e) {
+                    // Cancelled by the consumer.
+                    Thread.currentThread().interrupt();
+                } catch (final Exception e) {
+                    pages.put(e);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. Tokens are added at a steady rate up to a maximum burst,
+ * and each request takes one token, waiting for it if the bucket is empty.
+ *
+ * <p>The rate can be changed while the bucket is in use, which is how callers back off
+ * when a server says they are sending too many requests.</p>
+ */
+final class TokenBucket {
+
+    private double rate;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    // Requests may not be made before this System.nanoTime value, set by pause().
+    private long pausedUntil;
+
+    /**
+     * @param rate the number of tokens added per second. Zero or less means no limit.
+     * @param burst the most tokens the bucket can hold.
+     */
+    TokenBucket(final double rate, final double burst) {
+        this.rate = rate;
+        this.burst = Math.max(1.0, burst);
+        tokens = this.burst;
+        lastRefill = System.nanoTime();
+        pausedUntil = lastRefill;
+    }
+
+    /**
+     * Take a token, waiting until one is available.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void acquire() throws InterruptedException {
+        while (true) {
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                if (now - pausedUntil < 0) {
+                    waitNanos = pausedUntil - now;
+                } else if (rate <= 0) {
+                    return;
+                } else {
+                    refill(now);
+                    if (tokens >= 1.0) {
+                        tokens -= 1.0;
+                        return;
+                    }
+                    waitNanos = (long)((1.0 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+                }
+            }
+
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+
+    private void refill(final long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Change the rate tokens are added at.
+     */
+    synchronized void setRate(final double rate) {
+        refill(System.nanoTime());
+        this.rate = rate;
+    }
+
+    /**
+     * Stop handing out tokens for the given time, such as after a server has said to retry later.
+     */
+    synchronized void pause(final long millis) {
+        final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (until - pausedUntil > 0) {
+            pausedUntil = until;
+        }
+        tokens = 0;
+    }
+}
@@ -0,0 +1,271 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import au.gov.nsw.dpi.cli.UbidotsClient.Item;
+
+/**
+ * Finds Ubidots devices (DataSources) and variables by name, remembering what it has found
+ * so each is only looked up once per run.
+ *
+ * <p>The account's DataSources are listed at most once per run, and the Variables of each
+ * DataSource at most once, by whichever lane asks first. A listing is one request per hundred
+ * objects, so finding a device's variables takes far fewer requests than fetching each one by
+ * id. Ids are not tied to the client that found them, so all lanes share them.</p>
+ *
+ * <p>The DataSource ids can also be saved to a file and used by later runs, so a run does not
+ * have to list the DataSources of the account at all. Each id in the file keeps the time it
+ * was last seen to work, and is used until that is older than the time-to-live. An id from
+ * the file is checked by fetching its DataSource the first time it is used, and an id that no
+ * longer works is forgotten and the DataSource looked up by name. Variable ids are not saved,
+ * as listing the Variables of a DataSource both finds them and shows which still exist.</p>
+ */
+final class UbidotsCatalog {
+
+    private static final Logger logger = LoggerFactory.getLogger(UbidotsCatalog.class);
+
+    /**
+     * An id and the time it was last seen to work.
+     */
+    private static final class Entry {
+        String id;
+        long seen;
+
+        Entry(final String id, final long seen) {
+            this.id = id;
+            this.seen = seen;
+        }
+    }
+
+    /**
+     * The ids written to the cache file.
+     */
+    private static final class Ids {
+        // Lower case DataSource name to id, names are matched ignoring case.
+        Map<String, Entry> dataSources = new HashMap<>();
+    }
+
+    private final Path file;
+    private final long ttlMillis;
+
+    // Ids seen to work at or after this time have been confirmed in this run.
+    private final long started = System.currentTimeMillis();
+
+    // Guarded by ids.
+    private final Ids ids;
+
+    private final Object listLock = new Object();
+    // Guarded by listLock.
+    private boolean listedDataSources = false;
+
+    // DataSource id to Variable name to id, filled by listing the DataSource's Variables.
+    private final Map<String, Map<String, String>> variables = new ConcurrentHashMap<>();
+    private final Map<String, Object> variableLocks = new ConcurrentHashMap<>();
+
+    /**
+     * @param file the file to read and save ids in, or null to only cache them for this run.
+     * @param ttlMillis how long an id in the file can be used for after it was last seen to work.
+     * @throws IOException if the file exists but cannot be read.
+     */
+    UbidotsCatalog(final Path file, final long ttlMillis) throws IOException {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+
+        Ids loaded = null;
+        if (file != null && Files.isRegularFile(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                loaded = new Gson().fromJson(reader, Ids.class);
+            } catch (final JsonParseException e) {
+                logger.warn("Ignoring Ubidots cache {}, it could not be read: {}", file, e.toString());
+            }
+        }
+
+        ids = loaded != null && loaded.dataSources != null ? loaded : new Ids();
+        final int count = ids.dataSources.size();
+        ids.dataSources.values().removeIf(e -> e == null || e.id == null || expired(e));
+        if (ids.dataSources.size() < count) {
+            logger.info("Ignoring {} ids in Ubidots cache {} that are older than the time-to-live", count - ids.dataSources.size(), file);
+        }
+    }
+
+    /**
+     * @param lane the lane to look the DataSource up with.
+     * @param name the name of the DataSource, matched ignoring case.
+     * @return the id of the DataSource, or null if there is none with the name.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    String dataSourceId(final UbidotsScheduler.Lane lane, final String name) throws Exception {
+        final String key = name.toLowerCase(Locale.ROOT);
+        final Entry cached;
+        synchronized (ids) {
+            cached = ids.dataSources.get(key);
+            if (cached != null && cached.seen >= started) {
+                return cached.id;
+            }
+        }
+
+        if (cached != null) {
+            // The id is from the cache file, and the DataSource may have been deleted since.
+            final UbidotsClient client = lane.client();
+            try {
+                if (lane.call("getDataSource", () -> client.dataSource(cached.id)) != null) {
+                    synchronized (ids) {
+                        cached.seen = System.currentTimeMillis();
+                    }
+                    return cached.id;
+                }
+                logger.warn("Ubidots device {} no longer has the id {}, looking it up by name", name, cached.id);
+            } catch (final Exception e) {
+                logger.warn("Could not fetch Ubidots device {} by id, looking it up by name: {}", name, e.toString());
+            }
+            synchronized (ids) {
+                ids.dataSources.remove(key, cached);
+            }
+        }
+
+        listDataSources(lane);
+        synchronized (ids) {
+            final Entry listed = ids.dataSources.get(key);
+            return listed != null ? listed.id : null;
+        }
+    }
+
+    /**
+     * Create a DataSource and remember its id.
+     *
+     * @return the id of the new DataSource.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    String createDataSource(final UbidotsScheduler.Lane lane, final String name) throws Exception {
+        final UbidotsClient client = lane.client();
+        final Item ds = lane.call("createDataSource", () -> client.createDataSource(name));
+        synchronized (ids) {
+            ids.dataSources.put(name.toLowerCase(Locale.ROOT), new Entry(ds.id, System.currentTimeMillis()));
+        }
+        // A new DataSource has no Variables, so there is no need to list them.
+        variables.putIfAbsent(ds.id, new ConcurrentHashMap<>());
+        return ds.id;
+    }
+
+    /**
+     * @param lane the lane to look the Variable up with.
+     * @param dataSourceId the id of the Variable's DataSource.
+     * @param name the name of the Variable.
+     * @return the id of the Variable, or null if the DataSource has none with the name.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    String variableId(final UbidotsScheduler.Lane lane, final String dataSourceId, final String name) throws Exception {
+        return listVariables(lane, dataSourceId).get(name);
+    }
+
+    /**
+     * Create a Variable and remember its id.
+     *
+     * @return the id of the new Variable.
+     * @throws Exception if there is an error calling Ubidots.
+     */
+    String createVariable(final UbidotsScheduler.Lane lane, final String dataSourceId, final String name) throws Exception {
+        final Map<String, String> listed = listVariables(lane, dataSourceId);
+        final UbidotsClient client = lane.client();
+        final Item v = lane.call("createVariable", () -> client.createVariable(dataSourceId, name));
+        listed.put(name, v.id);
+        return v.id;
+    }
+
+    /**
+     * Write the DataSource ids to the cache file, if there is one. An id that has not been
+     * used in this run keeps the time it was last seen to work, so it still expires.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+
+        synchronized (ids) {
+            ids.dataSources.values().removeIf(this::expired);
+            final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                new Gson().toJson(ids, writer);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private boolean expired(final Entry e) {
+        return System.currentTimeMillis() - e.seen > ttlMillis;
+    }
+
+    /**
+     * List the account's DataSources, unless that has been done in this run, and replace the
+     * ids from the cache file with those found.
+     */
+    private void listDataSources(final UbidotsScheduler.Lane lane) throws Exception {
+        synchronized (listLock) {
+            if (listedDataSources) {
+                return;
+            }
+
+            final UbidotsClient client = lane.client();
+            final List<Item> all = lane.call("getDataSources", () -> client.dataSources());
+            final long now = System.currentTimeMillis();
+            final Map<String, Entry> byName = new HashMap<>();
+            for (final Item ds : all) {
+                byName.putIfAbsent(ds.name.toLowerCase(Locale.ROOT), new Entry(ds.id, now));
+            }
+            synchronized (ids) {
+                // Keep the DataSources other threads created while the list was being fetched.
+                for (final Map.Entry<String, Entry> e : ids.dataSources.entrySet()) {
+                    if (e.getValue().seen >= started) {
+                        byName.putIfAbsent(e.getKey(), e.getValue());
+                    }
+                }
+                ids.dataSources = byName;
+            }
+            listedDataSources = true;
+        }
+    }
+
+    /**
+     * @return the Variables of the DataSource by name, listing them if that has not been done
+     *     in this run. Variables created later are added to the map.
+     */
+    private Map<String, String> listVariables(final UbidotsScheduler.Lane lane, final String dataSourceId) throws Exception {
+        final Map<String, String> known = variables.get(dataSourceId);
+        if (known != null) {
+            return known;
+        }
+
+        synchronized (variableLocks.computeIfAbsent(dataSourceId, k -> new Object())) {
+            Map<String, String> listed = variables.get(dataSourceId);
+            if (listed == null) {
+                final UbidotsClient client = lane.client();
+                final List<Item> all = lane.call("getVariables", () -> client.variables(dataSourceId));
+                listed = new ConcurrentHashMap<>();
+                for (final Item v : all) {
+                    listed.putIfAbsent(v.name, v.id);
+                }
+                variables.put(dataSourceId, listed);
+            }
+            return listed;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+/**
+ * Makes the calls to the Ubidots v1.6 REST API used by the migration: getting an API token,
+ * listing, fetching and creating DataSources and Variables, and saving values.
+ *
+ * <p>The ubidots-java ApiClient returns the body of a response whatever its status, and its
+ * Variable.saveValues throws the body away, so neither a 429 Too Many Requests nor any other
+ * error ever reached the caller: the rate control could not see that Ubidots wanted it to
+ * slow down and rejected values were counted as uploaded. This client checks the status of
+ * every response and throws a {@link StatusException} holding it when it is not 2xx.</p>
+ *
+ * <p>Each client gets its own API token from the API key. DataSources and Variables are
+ * identified by their ids, so what one client finds can be used with any other. A client is
+ * thread-safe, as the {@link HttpClient} it shares with the others is.</p>
+ */
+final class UbidotsClient {
+
+    static final String defaultUrl = "http://things.ubidots.com/api/v1.6/";
+
+    // Lists are fetched a page of this many at a time.
+    private static final int pageSize = 100;
+
+    private static final Duration timeout = Duration.ofMinutes(2);
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * A response whose status is not 2xx.
+     */
+    static final class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        StatusException(final int status, final String request, final String body) {
+            super("Ubidots answered " + request + " with HTTP " + status + ": " + (body.length() > 200 ? body.substring(0, 200) + "..." : body));
+            this.status = status;
+        }
+    }
+
+    /**
+     * The fields used of a DataSource or Variable.
+     */
+    static final class Item {
+        String id;
+        String name;
+    }
+
+    /**
+     * A page of a list, with the URL of the next page or null if it is the last.
+     */
+    private static final class Page {
+        String next;
+        List<Item> results;
+    }
+
+    private final HttpClient http;
+    private final String url;
+    private final String apiKey;
+    private volatile String token = null;
+
+    /**
+     * @param http makes the requests.
+     * @param url the base URL of the API, ending in /.
+     * @param apiKey the Ubidots API key.
+     */
+    UbidotsClient(final HttpClient http, final String url, final String apiKey) {
+        this.http = http;
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Get the client's API token from the API key. This must be called before any other request.
+     *
+     * @throws IOException if the request fails or does not return a token.
+     * @throws InterruptedException if the thread is interrupted while waiting for the response.
+     */
+    void authenticate() throws IOException, InterruptedException {
+        final HttpRequest request = request("auth/token").header("X-Ubidots-ApiKey", apiKey).POST(HttpRequest.BodyPublishers.noBody()).build();
+        final Map<?, ?> response = gson.fromJson(send(request, "POST auth/token"), Map.class);
+        if (response == null || ! (response.get("token") instanceof String)) {
+            throw new IOException("Ubidots did not return an API token");
+        }
+        token = (String)response.get("token");
+    }
+
+    /**
+     * @return the DataSources of the account.
+     */
+    List<Item> dataSources() throws IOException, InterruptedException {
+        return list("datasources/");
+    }
+
+    /**
+     * @return the DataSource, or null if there is none with the id.
+     */
+    Item dataSource(final String id) throws IOException, InterruptedException {
+        return get("datasources/" + encode(id) + "/");
+    }
+
+    Item createDataSource(final String name) throws IOException, InterruptedException {
+        return post("datasources/", name);
+    }
+
+    /**
+     * @return the Variables of the DataSource.
+     */
+    List<Item> variables(final String dataSourceId) throws IOException, InterruptedException {
+        return list("datasources/" + encode(dataSourceId) + "/variables/");
+    }
+
+    /**
+     * @return the Variable, or null if there is none with the id.
+     */
+    Item variable(final String id) throws IOException, InterruptedException {
+        return get("variables/" + encode(id) + "/");
+    }
+
+    Item createVariable(final String dataSourceId, final String name) throws IOException, InterruptedException {
+        return post("datasources/" + encode(dataSourceId) + "/variables/", name);
+    }
+
+    /**
+     * Save values with their own timestamps to a Variable.
+     *
+     * @param variableId the id of the Variable.
+     * @param timestamps the timestamps of the values.
+     * @param values the values.
+     * @throws IOException if the request fails or Ubidots does not accept the values.
+     * @throws InterruptedException if the thread is interrupted while waiting for the response.
+     */
+    void saveValues(final String variableId, final long[] timestamps, final double[] values) throws IOException, InterruptedException {
+        final String path = "variables/" + encode(variableId) + "/values/";
+        send(authorised(path).POST(HttpRequest.BodyPublishers.ofString(valuesBody(timestamps, values))).build(), "POST " + path);
+    }
+
+    /**
+     * @return the body of a request saving the values, a JSON array of objects of the form
+     *     <code>{"value":1.5,"timestamp":1617235200000}</code> as Gson writes them.
+     */
+    static String valuesBody(final long[] timestamps, final double[] values) {
+        final List<Map<String, Object>> points = new ArrayList<>(timestamps.length);
+        for (int i = 0; i < timestamps.length; i++) {
+            final Map<String, Object> point = new LinkedHashMap<>();
+            point.put("value", values[i]);
+            point.put("timestamp", timestamps[i]);
+            points.add(point);
+        }
+        return gson.toJson(points);
+    }
+
+    private Item get(final String path) throws IOException, InterruptedException {
+        try {
+            return gson.fromJson(send(authorised(path).GET().build(), "GET " + path), Item.class);
+        } catch (final StatusException e) {
+            if (e.status == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private Item post(final String path, final String name) throws IOException, InterruptedException {
+        final String body = gson.toJson(Collections.singletonMap("name", name));
+        final Item item = gson.fromJson(send(authorised(path).POST(HttpRequest.BodyPublishers.ofString(body)).build(), "POST " + path), Item.class);
+        if (item == null || item.id == null) {
+            throw new IOException("Ubidots did not return the id of " + name + " created with POST " + path);
+        }
+        return item;
+    }
+
+    private List<Item> list(final String path) throws IOException, InterruptedException {
+        final List<Item> items = new ArrayList<>();
+        String next = url + path + "?page_size=" + pageSize;
+        while (next != null) {
+            final Page page = gson.fromJson(send(authorised(URI.create(next)).GET().build(), "GET " + path), Page.class);
+            if (page == null || page.results == null) {
+                throw new IOException("Ubidots did not return a list for GET " + path);
+            }
+            items.addAll(page.results);
+            next = page.next;
+        }
+        return items;
+    }
+
+    private HttpRequest.Builder request(final String path) {
+        return HttpRequest.newBuilder(URI.create(url + path)).timeout(timeout);
+    }
+
+    private HttpRequest.Builder authorised(final String path) {
+        return authorised(URI.create(url + path));
+    }
+
+    private HttpRequest.Builder authorised(final URI uri) {
+        return HttpRequest.newBuilder(uri).timeout(timeout)
+            .header("X-Auth-Token", token)
+            .header("Content-Type", "application/json");
+    }
+
+    /**
+     * @return the body of the response.
+     * @throws StatusException if the status of the response is not 2xx.
+     */
+    private String send(final HttpRequest request, final String description) throws IOException, InterruptedException {
+        final HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() / 100 != 2) {
+            throw new StatusException(response.statusCode(), description, response.body());
+        }
+        return response.body();
+    }
+
+    private static String encode(final String id) {
+        return URLEncoder.encode(id, StandardCharsets.UTF_8);
+    }
+}
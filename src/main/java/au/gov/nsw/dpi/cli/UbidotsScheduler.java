@@ -0,0 +1,200 @@
+package au.gov.nsw.dpi.cli;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out permission to make Ubidots API calls so that all the migration threads together
+ * keep within the Ubidots rate limits.
+ *
+ * <p>Ubidots limits the number of requests per second made with each API token, and the
+ * number made by the whole account. Each {@link UbidotsClient} gets its own token, so the
+ * scheduler keeps a fixed number of lanes, each with its own client and a token bucket for
+ * the per-token limit, and one bucket shared by all lanes for the account limit. The clients
+ * share one HttpClient, and any number of threads can make requests on a lane at the same
+ * time; the buckets alone decide how many requests are made.</p>
+ *
+ * <p>When Ubidots answers with 429 Too Many Requests the rates of the lane and the account
+ * are halved and the request is retried after a pause. Each successful request then raises
+ * the rates a little until they are back to the configured limits.</p>
+ *
+ * <p>The latency, failures and retries of each type of request are recorded in the run's
+ * {@link Metrics}.</p>
+ */
+final class UbidotsScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(UbidotsScheduler.class);
+
+    private static final int maxRetries = 5;
+    private static final long initialBackoffMs = 1000;
+
+    // The lowest rate a 429 can reduce a bucket to, in requests per second.
+    private static final double minRate = 0.25;
+
+    private static final int tooManyRequests = 429;
+
+    private final String apiKey;
+    private final String url;
+    private final HttpClient http;
+    private final Metrics metrics;
+    private final double tokenRate;
+    private final double accountRate;
+    private final TokenBucket account;
+    private final Lane[] lanes;
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    /**
+     * @param apiKey the Ubidots API key.
+     * @param url the base URL of the Ubidots API, such as http://things.ubidots.com/api/v1.6/,
+     *     or null for the Ubidots default.
+     * @param metrics records the requests.
+     * @param tokens the number of API tokens, and so clients, to use.
+     * @param tokenRate the maximum number of requests per second made with a single token.
+     * @param accountRate the maximum number of requests per second made by the account.
+     */
+    UbidotsScheduler(final String apiKey, final String url, final Metrics metrics, final int tokens, final double tokenRate, final double accountRate) {
+        this.apiKey = apiKey;
+        this.url = url != null ? url : UbidotsClient.defaultUrl;
+        http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(30)).build();
+        this.metrics = metrics;
+        this.tokenRate = tokenRate;
+        this.accountRate = accountRate;
+        account = new TokenBucket(accountRate, Math.max(1.0, accountRate));
+
+        lanes = new Lane[Math.max(1, tokens)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    /**
+     * @return the next lane, in turn. A lane may be shared by several threads.
+     */
+    Lane lane() {
+        return lanes[Math.floorMod(nextLane.getAndIncrement(), lanes.length)];
+    }
+
+    /**
+     * A client and the rate limit of its token.
+     */
+    final class Lane {
+
+        private final int index;
+        private final TokenBucket bucket;
+        private UbidotsClient client = null;
+
+        private Lane(final int index) {
+            this.index = index;
+            bucket = new TokenBucket(tokenRate, 1.0);
+        }
+
+        /**
+         * @return the lane's client, creating it on first use. Creating a client requests a
+         *     new token from Ubidots so it is rate limited like any other request.
+         * @throws Exception if the token cannot be obtained.
+         */
+        UbidotsClient client() throws Exception {
+            synchronized (this) {
+                if (client != null) {
+                    return client;
+                }
+            }
+
+            final UbidotsClient c = call("token", () -> {
+                final UbidotsClient authenticated = new UbidotsClient(http, url, apiKey);
+                authenticated.authenticate();
+                return authenticated;
+            });
+            synchronized (this) {
+                if (client == null) {
+                    client = c;
+                }
+                return client;
+            }
+        }
+
+        /**
+         * Make a request once the per-token and account limits allow it, retrying it if
+         * Ubidots says too many requests are being made.
+         *
+         * @param operation the type of request, such as saveValues, for the metrics.
+         * @param request the request, which should use this lane's client.
+         * @return the result of the request.
+         * @throws Exception the exception thrown by the request if it was not a 429 response
+         *     or the retries have been used up.
+         */
+        <T> T call(final String operation, final Callable<T> request) throws Exception {
+            final Metrics.Histogram latency = metrics.request("ubidots." + operation);
+            long backoff = initialBackoffMs;
+            for (int attempt = 0; ; attempt++) {
+                if (attempt > 0) {
+                    latency.retry();
+                }
+                bucket.acquire();
+                account.acquire();
+
+                try {
+                    final long start = System.nanoTime();
+                    final T result = request.call();
+                    latency.record(System.nanoTime() - start);
+                    recover(bucket, tokenRate);
+                    recover(account, accountRate);
+                    return result;
+                } catch (final Exception e) {
+                    latency.error();
+                    if ( ! isTooManyRequests(e) || attempt >= maxRetries) {
+                        throw e;
+                    }
+                }
+
+                slowDown(bucket);
+                slowDown(account);
+                logger.warn("Ubidots rate limit reached on token {}, retrying in {} ms at {} requests/s", index, backoff, String.format("%.2f", bucket.getRate()));
+                bucket.pause(backoff);
+                account.pause(backoff);
+                backoff *= 2;
+            }
+        }
+
+        /**
+         * @return the current rate of the lane's token bucket, in requests per second.
+         */
+        double rate() {
+            return bucket.getRate();
+        }
+    }
+
+    private static void slowDown(final TokenBucket b) {
+        final double rate = b.getRate();
+        if (rate > 0) {
+            b.setRate(Math.max(minRate, rate / 2));
+        }
+    }
+
+    /**
+     * Raise the rate of the bucket by a tenth of a request per second, up to the limit.
+     */
+    private static void recover(final TokenBucket b, final double limit) {
+        final double rate = b.getRate();
+        if (rate < limit) {
+            b.setRate(Math.min(limit, rate + 0.1));
+        }
+    }
+
+    /**
+     * @return true if the exception, or one of its causes, is a 429 response from the client.
+     */
+    private static boolean isTooManyRequests(final Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof UbidotsClient.StatusException && ((UbidotsClient.StatusException)t).status == tooManyRequests) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
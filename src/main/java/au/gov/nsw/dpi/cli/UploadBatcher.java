@@ -0,0 +1,105 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.Arrays;
+
+/**
+ * Collects readings into batches whose encoded request body stays under a size limit.
+ *
+ * <p>{@link UbidotsClient#saveValues} sends a JSON array of objects of the form
+ * <code>{"value":1.5,"timestamp":1617235200000}</code>, so the size of each reading is
+ * known from the lengths of its value and timestamp as Gson writes them. Short integer
+ * readings take around 40 bytes and long doubles around 55, so packing by size rather than
+ * count sends more readings per request for typical sensor data without the risk of a batch
+ * of long values going over the limit.</p>
+ *
+ * <p>A batcher is not thread-safe.</p>
+ */
+final class UploadBatcher {
+
+    // The characters of {"value":,"timestamp":} around each reading.
+    private static final int pointOverhead = 23;
+
+    // The [] around the array.
+    private static final int arrayOverhead = 2;
+
+    private final int maxBytes;
+
+    private long[] timestamps = new long[256];
+    private double[] values = new double[256];
+    private int size = 0;
+    private int bytes = arrayOverhead;
+
+    /**
+     * @param maxBytes the largest request body to make. A batch always has at least one
+     *     reading even if it is larger than this.
+     */
+    UploadBatcher(final int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a reading to the batch being collected.
+     *
+     * @return the batch collected so far if this reading does not fit in it, otherwise null.
+     *     The reading starts the next batch.
+     */
+    UploadQueue.Batch add(final long ts, final double value) {
+        final int pointBytes = pointOverhead + longLength(ts) + doubleLength(value) + (size > 0 ? 1 : 0);
+
+        UploadQueue.Batch full = null;
+        if (size > 0 && bytes + pointBytes > maxBytes) {
+            full = flush();
+            bytes += pointBytes - 1;
+        } else {
+            bytes += pointBytes;
+        }
+
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        timestamps[size] = ts;
+        values[size] = value;
+        size++;
+
+        return full;
+    }
+
+    /**
+     * @return the readings collected so far, or null if there are none.
+     */
+    UploadQueue.Batch flush() {
+        if (size == 0) {
+            return null;
+        }
+
+        final UploadQueue.Batch batch = new UploadQueue.Batch(Arrays.copyOf(timestamps, size), Arrays.copyOf(values, size), bytes);
+        size = 0;
+        bytes = arrayOverhead;
+        return batch;
+    }
+
+    private static int longLength(final long v) {
+        if (v == Long.MIN_VALUE) {
+            return 20;
+        }
+
+        int len = v < 0 ? 2 : 1;
+        for (long n = Math.abs(v); n >= 10; n /= 10) {
+            len++;
+        }
+        return len;
+    }
+
+    /**
+     * @return the length of the value as Gson writes it, which is Double.toString.
+     */
+    private static int doubleLength(final double v) {
+        // Whole numbers below 10^7 are written as digits followed by .0, the common case for
+        // sensor counts and raw readings.
+        if (v == Math.rint(v) && Math.abs(v) < 1e7 && Double.doubleToRawLongBits(v) != Double.doubleToRawLongBits(-0.0)) {
+            return longLength((long)v) + 2;
+        }
+        return Double.toString(v).length();
+    }
+}
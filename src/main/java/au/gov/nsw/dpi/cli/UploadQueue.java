@@ -0,0 +1,192 @@
+package au.gov.nsw.dpi.cli;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A bounded queue of batches of readings waiting to be uploaded for a single variable.
+ *
+ * <p>A producer such as a file reader adds readings, which are collected into batches, or
+ * puts whole batches on the queue, blocking while it is full. The batches are uploaded in
+ * order by a task on the executor, which is only submitted while there are batches waiting
+ * and ends when the queue is empty. No thread of the executor waits for a producer, so many
+ * queues can share a small fixed pool without the risk of a producer waiting on a queue
+ * whose uploads are stuck behind other queues' uploads.</p>
+ *
+ * <p>Once an upload fails the queue stops: the batches waiting are discarded and the
+ * producer's next add or put throws a {@link FailedException}, so it can stop reading the
+ * variable's readings rather than reading them all only to throw them away.</p>
+ */
+final class UploadQueue {
+
+    /**
+     * Readings with their own timestamps, to be sent in one request.
+     */
+    static final class Batch {
+        final long[] timestamps;
+        final double[] values;
+
+        // The size of the encoded request body.
+        final int bytes;
+
+        Batch(final long[] timestamps, final double[] values, final int bytes) {
+            this.timestamps = timestamps;
+            this.values = values;
+            this.bytes = bytes;
+        }
+
+        int size() {
+            return timestamps.length;
+        }
+    }
+
+    /**
+     * Thrown to the producer once an upload has failed, with the upload's exception as the cause.
+     */
+    static final class FailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        FailedException(final Exception cause) {
+            super("An upload failed: " + cause, cause);
+        }
+    }
+
+    /**
+     * Sends a batch of readings.
+     */
+    interface Uploader {
+        void upload(Batch batch) throws Exception;
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    private final Uploader uploader;
+
+    // Only used by the producer thread.
+    private final UploadBatcher batcher;
+    private long count = 0;
+
+    // Guarded by this.
+    private final ArrayDeque<Batch> batches = new ArrayDeque<>();
+    private boolean draining = false;
+    private Exception failure = null;
+
+    /**
+     * @param executor runs the uploads.
+     * @param capacity the number of batches that may be waiting before put blocks.
+     * @param maxBytes the largest encoded request body of the batches made by {@link #add}.
+     * @param uploader sends each batch.
+     */
+    UploadQueue(final Executor executor, final int capacity, final int maxBytes, final Uploader uploader) {
+        this.executor = executor;
+        this.capacity = Math.max(1, capacity);
+        this.uploader = uploader;
+        batcher = new UploadBatcher(maxBytes);
+    }
+
+    /**
+     * Add a reading to the batch being collected, putting the batch on the queue when it is full.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for room on the queue.
+     * @throws FailedException if an upload has failed.
+     */
+    void add(final long ts, final double value) throws InterruptedException, FailedException {
+        count++;
+        final Batch full = batcher.add(ts, value);
+        if (full != null) {
+            put(full);
+        }
+    }
+
+    /**
+     * Put the readings collected by {@link #add} on the queue, even if the batch is not full.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for room on the queue.
+     * @throws FailedException if an upload has failed.
+     */
+    void flush() throws InterruptedException, FailedException {
+        final Batch batch = batcher.flush();
+        if (batch != null) {
+            put(batch);
+        }
+    }
+
+    /**
+     * @return the number of readings given to {@link #add}.
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Add a batch to the queue, waiting while it is full.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     * @throws FailedException if an upload has failed, the batch is discarded.
+     */
+    synchronized void put(final Batch batch) throws InterruptedException, FailedException {
+        while (failure == null && batches.size() >= capacity) {
+            wait();
+        }
+        if (failure != null) {
+            throw new FailedException(failure);
+        }
+
+        batches.add(batch);
+        if ( ! draining) {
+            draining = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Put any readings collected by {@link #add} on the queue and wait for all the batches to
+     * be uploaded.
+     *
+     * @throws Exception the exception thrown by the first upload that failed.
+     */
+    void finish() throws Exception {
+        try {
+            flush();
+        } catch (final FailedException e) {
+            // The failure itself is thrown below.
+        }
+        waitForUploads();
+    }
+
+    private synchronized void waitForUploads() throws Exception {
+        while (failure == null && draining) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Batch batch;
+            synchronized (this) {
+                batch = batches.poll();
+                if (batch == null) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                notifyAll();
+            }
+
+            try {
+                uploader.upload(batch);
+            } catch (final Exception e) {
+                synchronized (this) {
+                    failure = e;
+                    batches.clear();
+                    draining = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package au.gov.nsw.dpi.model;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
 
 public class DeviceInfo extends ModelBaseObject {
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss XX");
+    // Same output as SimpleDateFormat("yyyy-MM-dd HH:mm:ss XX") but safe to share between export threads.
+    private static final DateTimeFormatter sdf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss XX").withZone(ZoneId.systemDefault());
 
     public String tbDevName = "";
     public String tbDevId = "";
@@ -17,13 +19,21 @@ public class DeviceInfo extends ModelBaseObject {
     public String readingsPrefix = "";
     public Map<String, String> fieldToFilename = new HashMap<>();
 
+    // How the timeseries files were written: csv, wide, json or arrow, and ascending or
+    // descending. Incremental exports only add to files written the same way.
+    public String format = "";
+    public String order = "";
+
+    // The timestamp of the latest entry exported for each key, used by incremental exports.
+    public Map<String, Long> lastExported = new HashMap<>();
+
     public long getFrom() {
         return from;
     }
 
     public void setFrom(final long from) {
         this.from = from;
-        fromReadable = sdf.format(new Date(from));
+        fromReadable = sdf.format(Instant.ofEpochMilli(from));
     }
 
     public long getTo() {
@@ -32,6 +42,53 @@ public class DeviceInfo extends ModelBaseObject {
 
     public void setTo(final long to) {
         this.to = to;
-        toReadable = sdf.format(new Date(to));
+        toReadable = sdf.format(Instant.ofEpochMilli(to));
+    }
+
+    /**
+     * Record the name of the file a key was exported to.
+     */
+    public synchronized void setFilename(final String key, final String filename) {
+        fieldToFilename.put(key, filename);
+    }
+
+    /**
+     * @return the timestamp of the latest entry exported for the given key, or null if there is none.
+     */
+    public synchronized Long getLastExported(final String key) {
+        return lastExported.get(key);
+    }
+
+    /**
+     * Widen the from and to times to include the given range of entry timestamps.
+     */
+    public synchronized void extendRange(final long earliest, final long latest) {
+        if (latest > to) {
+            setTo(latest);
+        }
+
+        if (earliest < from) {
+            setFrom(earliest);
+        }
+    }
+
+    /**
+     * Record that an entry for the given key has been exported, keeping the latest timestamp.
+     */
+    public synchronized void recordExported(final String key, final long ts) {
+        final Long current = lastExported.get(key);
+        if (current == null || ts > current) {
+            lastExported.put(key, ts);
+        }
+    }
+
+    /**
+     * Record the latest timestamps exported for a set of keys, once the file holding them has
+     * been written.
+     */
+    public synchronized void recordExported(final Map<String, Long> exported) {
+        for (final Map.Entry<String, Long> e : exported.entrySet()) {
+            recordExported(e.getKey(), e.getValue());
+        }
     }
 }
@@ -0,0 +1,138 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link CsvBatchReader} reads the same timestamps and values as Long.parseLong
+ * and Double.parseDouble, whether a value takes its fast path or falls back to parseDouble.
+ */
+public class CsvBatchReaderTest {
+
+    @Test
+    public void valuesMatchDoubleParseDouble() throws Exception {
+        final Random random = new Random(12);
+        final List<String> values = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            values.add(randomNumber(random));
+        }
+        for (final String v : new String[] {
+                "0", "-0", "+0", "0.0", "-0.0", "00012.5000", ".5", "-.5", "5.", "1e3", "-1.5E-7",
+                "123456789012345", "1234567890123456", "12345678901234567890", "0.1234567890123456789012",
+                "9007199254740993", "0.30000000000000004", "179769313486231570000000000000000",
+                "NaN", "Infinity", "-Infinity", "4.9e-324" }) {
+            values.add(v);
+        }
+
+        final StringBuilder csv = new StringBuilder();
+        final long[] expectedTs = new long[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            expectedTs[i] = 1609459200000L + i * 60_000L - (i % 7 == 0 ? 3_000_000_000_000L : 0);
+            csv.append(expectedTs[i]).append(',').append(values.get(i)).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+
+        final long[] ts = new long[values.size()];
+        final double[] read = new double[values.size()];
+        readAll(csv.toString(), ts, read);
+
+        assertArrayEquals(expectedTs, ts);
+        for (int i = 0; i < values.size(); i++) {
+            final double expected = Double.parseDouble(values.get(i));
+            assertEquals(values.get(i), Double.doubleToLongBits(expected), Double.doubleToLongBits(read[i]));
+        }
+    }
+
+    @Test
+    public void readsInBatchesAcrossBufferBoundaries() throws Exception {
+        // Longer than the reader's buffer, with a line longer than the buffer and no final line ending.
+        final StringBuilder csv = new StringBuilder();
+        final StringBuilder longValue = new StringBuilder("1.");
+        for (int i = 0; i < 100_000; i++) {
+            longValue.append(i % 10);
+        }
+        final int rows = 20_000;
+        for (int i = 0; i < rows; i++) {
+            csv.append(i).append(',').append(i == rows / 2 ? longValue : i + ".25").append(i < rows - 1 ? "\n" : "");
+            if (i % 1000 == 0) {
+                csv.append("\n");
+            }
+        }
+
+        try (CsvBatchReader reader = reader(csv.toString())) {
+            final long[] ts = new long[199];
+            final double[] values = new double[199];
+            int total = 0;
+            int n;
+            while ((n = reader.read(ts, values)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    final int row = total + i;
+                    assertEquals(row, ts[i]);
+                    assertEquals(row == rows / 2 ? Double.parseDouble(longValue.toString()) : row + 0.25, values[i], 0.0);
+                }
+                total += n;
+            }
+            assertEquals(rows, total);
+        }
+    }
+
+    @Test
+    public void rejectsLinesThatAreNotTimestampAndNumber() {
+        for (final String bad : new String[] { "1000\n", "1000,\n", "ts,value\n", "1000,1.5x\n", "1000,1,2\n", "10.5,1\n" }) {
+            assertThrows(bad, NumberFormatException.class, () -> readAll(bad, new long[1], new double[1]));
+        }
+    }
+
+    private static void readAll(final String csv, final long[] ts, final double[] values) throws IOException {
+        try (CsvBatchReader reader = reader(csv)) {
+            assertEquals(ts.length, reader.read(ts, values));
+            assertEquals(0, reader.read(new long[1], new double[1]));
+        }
+    }
+
+    private static CsvBatchReader reader(final String csv) {
+        return new CsvBatchReader(Channels.newChannel(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * @return a decimal number with up to 20 digits and up to 25 of them after the point, or
+     *     now and then a number in the form Double.toString gives.
+     */
+    private static String randomNumber(final Random random) {
+        if (random.nextInt(10) == 0) {
+            return Double.toString(random.nextBoolean() ? random.nextDouble() * Math.pow(10, random.nextInt(40) - 20) : random.nextGaussian());
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            sb.append(random.nextInt(5) == 0 ? '+' : '-');
+        }
+        final int digits = 1 + random.nextInt(20);
+        final int point = random.nextInt(3) == 0 ? -1 : random.nextInt(digits + 1);
+        for (int i = 0; i < digits; i++) {
+            if (i == point) {
+                sb.append('.');
+            }
+            sb.append((char)('0' + random.nextInt(10)));
+        }
+        if (point == digits) {
+            sb.append('.');
+        }
+        if (point >= 0 && random.nextInt(4) == 0) {
+            for (int i = random.nextInt(10); i > 0; i--) {
+                sb.append('0');
+            }
+        }
+        return sb.toString();
+    }
+}
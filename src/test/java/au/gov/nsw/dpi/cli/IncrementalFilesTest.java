@@ -0,0 +1,119 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalFilesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path existing;
+    private Path update;
+
+    @Before
+    public void setUp() {
+        existing = tmp.getRoot().toPath().resolve("existing");
+        update = tmp.getRoot().toPath().resolve("update");
+    }
+
+    @Test
+    public void ascendingCsvGoesAtTheEnd() throws Exception {
+        write(existing, "1,a\r\n2,b\r\n");
+        write(update, "3,c\r\n");
+        IncrementalFiles.merge(existing, update, true, IncrementalFiles.csv);
+        assertEquals("1,a\r\n2,b\r\n3,c\r\n", read(existing));
+        assertFalse(Files.exists(update));
+    }
+
+    @Test
+    public void descendingCsvGoesAtTheStart() throws Exception {
+        write(existing, "2,b\r\n1,a\r\n");
+        write(update, "3,c\r\n");
+        IncrementalFiles.merge(existing, update, false, IncrementalFiles.csv);
+        assertEquals("3,c\r\n2,b\r\n1,a\r\n", read(existing));
+        assertFalse(Files.exists(update));
+    }
+
+    @Test
+    public void ascendingJsonKeepsOneArray() throws Exception {
+        write(existing, "[\n{\"ts\": 1}\n,\n{\"ts\": 2}\n]\n");
+        write(update, "[\n{\"ts\": 3}\n,\n{\"ts\": 4}\n]\n");
+        IncrementalFiles.merge(existing, update, true, IncrementalFiles.json);
+        assertEquals("[\n{\"ts\": 1}\n,\n{\"ts\": 2}\n,\n{\"ts\": 3}\n,\n{\"ts\": 4}\n]\n", read(existing));
+    }
+
+    @Test
+    public void descendingJsonKeepsOneArray() throws Exception {
+        write(existing, "[\n{\"ts\": 2}\n,\n{\"ts\": 1}\n]\n");
+        write(update, "[\n{\"ts\": 4}\n,\n{\"ts\": 3}\n]\n");
+        IncrementalFiles.merge(existing, update, false, IncrementalFiles.json);
+        assertEquals("[\n{\"ts\": 4}\n,\n{\"ts\": 3}\n,\n{\"ts\": 2}\n,\n{\"ts\": 1}\n]\n", read(existing));
+    }
+
+    @Test
+    public void wideCsvKeepsOneHeader() throws Exception {
+        final String header = "ts,a,b\r\n";
+        write(existing, header + "1,x,\r\n");
+        write(update, header + "2,,y\r\n");
+        IncrementalFiles.merge(existing, update, true, IncrementalFiles.wideCsv(header));
+        assertEquals(header + "1,x,\r\n2,,y\r\n", read(existing));
+
+        write(update, header + "3,z,z\r\n");
+        IncrementalFiles.merge(existing, update, false, IncrementalFiles.wideCsv(header));
+        assertEquals(header + "3,z,z\r\n1,x,\r\n2,,y\r\n", read(existing));
+    }
+
+    @Test
+    public void updateBecomesTheFileWhenThereIsNone() throws Exception {
+        write(update, "[\n{\"ts\": 1}\n]\n");
+        IncrementalFiles.merge(existing, update, true, IncrementalFiles.json);
+        assertEquals("[\n{\"ts\": 1}\n]\n", read(existing));
+        assertFalse(Files.exists(update));
+    }
+
+    @Test
+    public void emptyUpdateLeavesTheFile() throws Exception {
+        write(existing, "[\n{\"ts\": 1}\n]\n");
+        write(update, "");
+        IncrementalFiles.merge(existing, update, true, IncrementalFiles.json);
+        assertEquals("[\n{\"ts\": 1}\n]\n", read(existing));
+        assertFalse(Files.exists(update));
+    }
+
+    @Test
+    public void failedMergeLeavesTheFileAsItWas() throws Exception {
+        // A file without its footer cannot be appended to, and must not be changed.
+        final String truncated = "[\n{\"ts\": 1}\n,\n{\"ts\": 2}\n";
+        write(existing, truncated);
+        write(update, "[\n{\"ts\": 3}\n]\n");
+        assertThrows(IOException.class, () -> IncrementalFiles.merge(existing, update, true, IncrementalFiles.json));
+        assertEquals(truncated, read(existing));
+
+        // The update is kept and no temporary file is left behind.
+        assertEquals("[\n{\"ts\": 3}\n]\n", read(update));
+        try (Stream<Path> files = Files.list(tmp.getRoot().toPath())) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    private static void write(final Path file, final String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
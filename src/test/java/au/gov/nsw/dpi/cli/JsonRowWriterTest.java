@@ -0,0 +1,147 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Checks the JSON written from the pages of several keys merged by a {@link TimeseriesMerger}:
+ * an object per timestamp with the keys that have a reading then, in both orders and across
+ * page boundaries.
+ */
+public class JsonRowWriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // Each key's readings, latest first, as ThingsBoard returns them.
+    private static final long[] aTs = { 5000, 4000, 3000, 1000 };
+    private static final String[] aValues = { "5", "4.5", "3", "1" };
+    private static final long[] bTs = { 5000, 3500, 3000, 2000, 1000 };
+    private static final String[] bValues = { "true", "", "-7", "20", "10" };
+
+    // The objects in descending order. b's blank reading at 3500 leaves that time out.
+    private static final String[] objects = {
+        object(5000, "a", "5", "b", "true"),
+        object(4000, "a", "4.5"),
+        object(3000, "a", "3", "b", "-7"),
+        object(2000, "b", "20"),
+        object(1000, "a", "1", "b", "10"),
+    };
+
+    @Test
+    public void descending() throws Exception {
+        for (final int limit : new int[] { 1, 2, 100 }) {
+            assertEquals("limit " + limit, array(objects, false), write(limit, 2, false, Collections.emptyMap()));
+        }
+    }
+
+    @Test
+    public void ascending() throws Exception {
+        for (final int limit : new int[] { 1, 2, 100 }) {
+            for (final int batchRows : new int[] { 1, 2, 3, 100 }) {
+                assertEquals("limit " + limit + ", batch " + batchRows, array(objects, true), write(limit, batchRows, true, Collections.emptyMap()));
+            }
+        }
+    }
+
+    @Test
+    public void isValidJson() throws Exception {
+        final Object[] parsed = new Gson().fromJson(write(2, 2, true, Collections.emptyMap()), Object[].class);
+        assertEquals(objects.length, parsed.length);
+    }
+
+    @Test
+    public void leavesOutReadingsExportedBefore() throws Exception {
+        final Map<String, Long> before = new HashMap<>();
+        before.put("a", 4000L);
+        before.put("b", 2000L);
+
+        final JsonRowWriter writer = new JsonRowWriter(2, before, 10);
+        final StringWriter out = new StringWriter();
+        try (TimeseriesMerger merger = merger(2)) {
+            writer.write(merger, out, null);
+        }
+
+        final String[] newer = { object(5000, "a", "5", "b", "true"), object(3000, "b", "-7") };
+        assertEquals(array(newer, false), out.toString());
+        assertEquals(1, writer.written(0));
+        assertEquals(2, writer.written(1));
+        assertEquals(Long.valueOf(5000), writer.exported().get("a"));
+        assertEquals(Long.valueOf(5000), writer.exported().get("b"));
+    }
+
+    @Test
+    public void writesNothingWithoutReadings() throws Exception {
+        final Map<String, Long> before = new HashMap<>();
+        before.put("a", 5000L);
+        before.put("b", 5000L);
+        final StringWriter out = new StringWriter();
+        try (TimeseriesMerger merger = merger(2);
+             ReverseSpool spool = new ReverseSpool(tmp.getRoot().toPath())) {
+            new JsonRowWriter(2, before, 10).write(merger, out, spool);
+        }
+        assertEquals("", out.toString());
+    }
+
+    private String write(final int limit, final int batchRows, final boolean ascending, final Map<String, Long> before) throws Exception {
+        final StringWriter out = new StringWriter();
+        try (TimeseriesMerger merger = merger(limit);
+             ReverseSpool spool = ascending ? new ReverseSpool(tmp.getRoot().toPath()) : null) {
+            new JsonRowWriter(2, before, batchRows).write(merger, out, spool);
+        }
+        return out.toString();
+    }
+
+    private static TimeseriesMerger merger(final int limit) {
+        final TimeseriesPager pager = new TimeseriesPager(null, limit, 1, 1);
+        final List<TimeseriesPager.Pages> sources = new ArrayList<>();
+        sources.add(pager.open(0, Long.MAX_VALUE, fetcher("a", aTs, aValues)));
+        sources.add(pager.open(0, Long.MAX_VALUE, fetcher("b", bTs, bValues)));
+        return new TimeseriesMerger(sources);
+    }
+
+    /**
+     * @return a fetcher that pages through the readings as ThingsBoard would.
+     */
+    private static TimeseriesPager.Fetcher fetcher(final String key, final long[] ts, final String[] values) {
+        return (startTs, endTs, limit) -> {
+            final Series page = new Series(key);
+            for (int i = 0; i < ts.length && page.size() < limit; i++) {
+                if (ts[i] > startTs && ts[i] <= endTs) {
+                    page.add(ts[i], values[i]);
+                }
+            }
+            return page;
+        };
+    }
+
+    private static String object(final long ts, final String... keyValues) {
+        final StringBuilder sb = new StringBuilder("{\n    \"ts\": ").append(ts).append(",\n    \"values\": {\n");
+        for (int i = 0; i < keyValues.length; i += 2) {
+            sb.append(i > 0 ? ",\n" : "").append("        \"").append(keyValues[i]).append("\": ").append(keyValues[i + 1]);
+        }
+        return sb.append("}}\n").toString();
+    }
+
+    private static String array(final String[] descending, final boolean ascending) {
+        final List<String> objs = new ArrayList<>(List.of(descending));
+        if (ascending) {
+            Collections.reverse(objs);
+        }
+        return "[\n" + String.join(",\n", objs) + "]\n";
+    }
+}
@@ -0,0 +1,247 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.gov.nsw.dpi.model.Series;
+
+/**
+ * Checks that {@link KeyGroupPager} passes on every reading of every key exactly once and in
+ * order, for keys with their own reporting rates, gaps and start and stop times generated
+ * from fixed seeds. A fake {@link KeyGroupPager.Fetcher} answers requests the way ThingsBoard
+ * does, applying the limit to each key separately.
+ */
+public class KeyGroupPagerTest {
+
+    private static final long minute = 60_000;
+    private static final long hour = 60 * minute;
+    private static final long day = 24 * hour;
+
+    // The end of the range fetched, the latest readings are at or just before it.
+    private static final long latest = 1609459200000L;
+
+    // Readings fetched more than once, as a fraction of those needed, stay under this.
+    private static final double maxRefetchRatio = 1.3;
+
+    /**
+     * The readings of a key, latest first.
+     */
+    private static final class Key {
+        final String name;
+        final long[] ts;
+
+        Key(final String name, final long[] ts) {
+            this.name = name;
+            this.ts = ts;
+        }
+    }
+
+    /**
+     * Answers requests from the keys' readings, counting what it returns.
+     */
+    private static final class FakeFetcher implements KeyGroupPager.Fetcher {
+        final Map<String, Key> keys = new HashMap<>();
+        long requests = 0;
+        long returned = 0;
+
+        @Override
+        public Map<String, Series> fetch(final List<String> names, final long startTs, final long endTs, final int limit) {
+            requests++;
+            assertFalse("request " + requests + " has no keys", names.isEmpty());
+
+            final Map<String, Series> pages = new HashMap<>();
+            for (final String n : names) {
+                final Key k = keys.get(n);
+                final Series page = new Series(n);
+                for (int i = firstAtOrBefore(k.ts, endTs); i < k.ts.length && k.ts[i] > startTs && page.size() < limit; i++) {
+                    page.add(k.ts[i], k.ts[i] / 1000);
+                }
+                returned += page.size();
+                if ( ! page.isEmpty()) {
+                    pages.put(n, page);
+                }
+            }
+            return pages;
+        }
+    }
+
+    /**
+     * The outcome of fetching a scenario's keys.
+     */
+    private static final class Result {
+        long needed = 0;
+        FakeFetcher fetcher;
+
+        double refetchRatio() {
+            return (double)fetcher.returned / Math.max(1, needed);
+        }
+    }
+
+    @Test
+    public void mixedRates() throws Exception {
+        for (final int limit : new int[] { 1000, 7 }) {
+            final Result r = check(limit, mixedRates(new Random(1)), null);
+            assertTrue("refetch ratio " + r.refetchRatio() + " at limit " + limit, r.refetchRatio() < maxRefetchRatio);
+        }
+    }
+
+    @Test
+    public void sameRateFetchesEachReadingOnce() throws Exception {
+        for (final int limit : new int[] { 1000, 7 }) {
+            final Result r = check(limit, sameRate(new Random(2)), null);
+            assertEquals("readings returned at limit " + limit, r.needed, r.fetcher.returned);
+        }
+    }
+
+    @Test
+    public void sparseDenseEmptyAndBursts() throws Exception {
+        for (final int limit : new int[] { 1000, 7 }) {
+            final Result r = check(limit, sparseAndDense(new Random(3)), null);
+            assertTrue("refetch ratio " + r.refetchRatio() + " at limit " + limit, r.refetchRatio() < maxRefetchRatio);
+        }
+    }
+
+    @Test
+    public void incremental() throws Exception {
+        // Each key starts after its own lastExported time, the last one has nothing new.
+        for (final int limit : new int[] { 1000, 7 }) {
+            final List<Key> keys = mixedRates(new Random(4));
+            final long[] earliest = new long[keys.size()];
+            for (int i = 0; i < earliest.length; i++) {
+                earliest[i] = latest - (i + 1) * 3 * day;
+            }
+            earliest[earliest.length - 1] = latest;
+            check(limit, keys, earliest);
+        }
+    }
+
+    /**
+     * Fetch the keys with a KeyGroupPager and check each key's pages are its readings in its
+     * range, latest first, with nothing missing or repeated.
+     *
+     * @param earliest the exclusive start of each key's range, or null for all its readings.
+     */
+    private static Result check(final int limit, final List<Key> keys, final long[] earliest) throws Exception {
+        final Result result = new Result();
+        result.fetcher = new FakeFetcher();
+        final List<String> names = new ArrayList<>(keys.size());
+        final long[] starts = new long[keys.size()];
+        final List<List<Long>> received = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final Key k = keys.get(i);
+            result.fetcher.keys.put(k.name, k);
+            names.add(k.name);
+            starts[i] = earliest != null ? earliest[i] : Long.MIN_VALUE;
+            received.add(new ArrayList<>());
+        }
+
+        new KeyGroupPager(limit).fetch(names, starts, latest, result.fetcher, (i, page) -> {
+            assertFalse("empty page of " + names.get(i), page.isEmpty());
+            for (int j = 0; j < page.size(); j++) {
+                received.get(i).add(page.ts(j));
+            }
+        });
+
+        for (int i = 0; i < keys.size(); i++) {
+            final long start = starts[i];
+            final long[] expected = Arrays.stream(keys.get(i).ts).filter(t -> t > start && t <= latest).toArray();
+            final long[] got = received.get(i).stream().mapToLong(Long::longValue).toArray();
+            assertArrayEquals(names.get(i) + " at limit " + limit, expected, got);
+            result.needed += expected.length;
+        }
+        return result;
+    }
+
+    /**
+     * Keys reporting every minute, 5 minutes, 15 minutes, hour and day with jitter and gaps,
+     * starting at different times, one of them having stopped reporting a month ago.
+     */
+    private static List<Key> mixedRates(final Random random) {
+        final List<Key> keys = new ArrayList<>();
+        keys.add(key("minute", random, minute, 60 * day, 0));
+        keys.add(key("fiveMinutes", random, 5 * minute, 200 * day, 0));
+        keys.add(key("quarterHour", random, 15 * minute, 90 * day, 0));
+        keys.add(key("hour", random, hour, 400 * day, 30 * day));
+        keys.add(key("day", random, day, 1000 * day, 0));
+        return keys;
+    }
+
+    /**
+     * Keys reporting at the same times, as the fields of one uplink do.
+     */
+    private static List<Key> sameRate(final Random random) {
+        final Key first = key("a", random, 10 * minute, 120 * day, 0);
+        final List<Key> keys = new ArrayList<>();
+        for (final String n : new String[] { "a", "b", "c", "d" }) {
+            keys.add(new Key(n, first.ts));
+        }
+        return keys;
+    }
+
+    /**
+     * A key with a handful of readings next to keys with many, a key with none, and a key
+     * whose readings come in bursts a millisecond apart, so page boundaries fall between
+     * readings with no time between them.
+     */
+    private static List<Key> sparseAndDense(final Random random) {
+        final List<Key> keys = new ArrayList<>();
+        keys.add(new Key("sparse", new long[] { latest - 2 * day, latest - 200 * day, latest - 400 * day }));
+        keys.add(key("dense", random, minute, 100 * day, 0));
+        keys.add(new Key("empty", new long[0]));
+        keys.add(key("dense2", random, 2 * minute, 150 * day, 2 * hour));
+
+        final List<Long> bursts = new ArrayList<>();
+        for (long t = latest - random.nextInt((int)hour); t > latest - 30 * day; t -= hour) {
+            for (int j = 0; j < 25; j++) {
+                bursts.add(t - j);
+            }
+        }
+        keys.add(new Key("bursts", bursts.stream().mapToLong(Long::longValue).toArray()));
+        return keys;
+    }
+
+    /**
+     * @param step the usual time between readings.
+     * @param span how far back the readings go from the latest time.
+     * @param quiet how long before the latest time the key stopped reporting.
+     * @return readings about step apart with up to a step of jitter and the occasional gap of
+     *     up to 50 steps.
+     */
+    private static Key key(final String name, final Random random, final long step, final long span, final long quiet) {
+        final List<Long> ts = new ArrayList<>();
+        long t = latest - quiet - random.nextInt((int)Math.min(step, Integer.MAX_VALUE));
+        while (t > latest - span) {
+            ts.add(t);
+            t -= step / 2 + (long)(random.nextDouble() * step);
+            if (random.nextInt(500) == 0) {
+                t -= step * (1 + random.nextInt(50));
+            }
+        }
+        return new Key(name, ts.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    private static int firstAtOrBefore(final long[] ts, final long endTs) {
+        int lo = 0;
+        int hi = ts.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (ts[mid] > endTs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
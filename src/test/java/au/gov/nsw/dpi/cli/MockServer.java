@@ -0,0 +1,250 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server standing in for a REST API, for load and scale testing without
+ * the real servers.
+ *
+ * <p>Every request is delayed by a fixed latency plus a random jitter, and requests over a
+ * rate limit are answered with 429 Too Many Requests, so the client's rate control and
+ * retries can be exercised. The server listens on an ephemeral port of the loopback
+ * interface and runs its handlers on a fixed pool of daemon threads.</p>
+ */
+abstract class MockServer implements AutoCloseable {
+
+    /**
+     * The number of requests allowed in each second, across all the threads calling {@link #tryAcquire}.
+     */
+    static final class RateLimit {
+        private final int perSecond;
+        private long second = Long.MIN_VALUE;
+        private int used = 0;
+
+        /**
+         * @param perSecond the requests allowed per second, 0 or less for no limit.
+         */
+        RateLimit(final int perSecond) {
+            this.perSecond = perSecond;
+        }
+
+        /**
+         * @return true if the request is allowed.
+         */
+        synchronized boolean tryAcquire() {
+            if (perSecond <= 0) {
+                return true;
+            }
+
+            final long now = System.nanoTime() / 1_000_000_000L;
+            if (now != second) {
+                second = now;
+                used = 0;
+            }
+            return used++ < perSecond;
+        }
+    }
+
+    /**
+     * An error response.
+     */
+    static final class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    static {
+        // Without TCP_NODELAY each response on a kept-alive connection waits for the client's
+        // delayed ACK, adding around 40 ms to every request after the first.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final RateLimit rateLimit;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threads the number of requests handled at the same time.
+     * @param latencyMs the delay added to every request.
+     * @param jitterMs the largest random delay added on top of the latency.
+     * @param requestsPerSecond the requests allowed per second, 0 for no limit.
+     * @throws IOException if the server cannot be started.
+     */
+    MockServer(final int threads, final long latencyMs, final long jitterMs, final int requestsPerSecond) throws IOException {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        rateLimit = new RateLimit(requestsPerSecond);
+
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            final Thread t = new Thread(r, getClass().getSimpleName());
+            t.setDaemon(true);
+            return t;
+        });
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::exchange);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL of the server, such as http://127.0.0.1:34567.
+     */
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests answered with 429 because of the rate limit.
+     */
+    long rejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answer a request.
+     *
+     * @param method the HTTP method.
+     * @param path the path of the request URI.
+     * @param query the decoded query parameters.
+     * @param headers the value of each request header, by lower case name.
+     * @param body the request body, empty if there is none.
+     * @return the JSON response body, sent with status 200 or the status returned by {@link #status}.
+     * @throws HttpError to send an error response.
+     */
+    protected abstract String handle(String method, String path, Map<String, String> query, Map<String, String> headers, String body) throws HttpError;
+
+    /**
+     * @return the status of a successful response to the request, 200 unless overridden.
+     */
+    protected int status(final String method, final String path) {
+        return 200;
+    }
+
+    /**
+     * @return a further limit on the request, such as a per-token rate, or null if there is none.
+     */
+    protected RateLimit extraLimit(final Map<String, String> headers) {
+        return null;
+    }
+
+    /**
+     * @return the JSON body of an error response.
+     */
+    protected String errorBody(final int status, final String message) {
+        return "{\"status\":" + status + ",\"message\":\"" + message.replace("\"", "'") + "\"}";
+    }
+
+    private void exchange(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            delay();
+
+            final Map<String, String> headers = new HashMap<>();
+            exchange.getRequestHeaders().forEach((k, v) -> headers.put(k.toLowerCase(Locale.ROOT), v.isEmpty() ? "" : v.get(0)));
+
+            int status;
+            String response;
+            final RateLimit extra = extraLimit(headers);
+            if ( ! rateLimit.tryAcquire() || (extra != null && ! extra.tryAcquire())) {
+                rejected.incrementAndGet();
+                status = 429;
+                response = errorBody(429, "Too Many Requests");
+            } else {
+                final String method = exchange.getRequestMethod();
+                final String path = exchange.getRequestURI().getRawPath();
+                try {
+                    response = handle(method, path, query(exchange.getRequestURI().getRawQuery()), headers, read(exchange.getRequestBody()));
+                    status = status(method, path);
+                } catch (final HttpError e) {
+                    status = e.status;
+                    response = errorBody(e.status, e.getMessage());
+                } catch (final RuntimeException e) {
+                    status = 500;
+                    response = errorBody(500, e.toString());
+                }
+            }
+
+            final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+            if (bytes.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay() {
+        final long ms = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+        if (ms > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(ms);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> query(final String raw) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<>();
+        if (raw == null || raw.isEmpty()) {
+            return params;
+        }
+        for (final String pair : raw.split("&")) {
+            final int eq = pair.indexOf('=');
+            final String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            final String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            params.put(name, value);
+        }
+        return params;
+    }
+}
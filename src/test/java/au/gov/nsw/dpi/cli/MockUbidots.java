@@ -0,0 +1,245 @@
+package au.gov.nsw.dpi.cli;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+
+/**
+ * A stand-in for the parts of the Ubidots v1.6 REST API the migration uses: getting an API
+ * token from the API key, finding, listing and creating datasources and variables, and saving
+ * values.
+ *
+ * <p>Besides the limit on requests per second made by the account there is a limit on those
+ * made with each token, as Ubidots has. The values saved to each variable are counted but not
+ * kept.</p>
+ */
+final class MockUbidots extends MockServer {
+
+    static final String apiKey = "mock-api-key";
+    static final String basePath = "/api/v1.6/";
+
+    private static final int defaultPageSize = 100;
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * A datasource or variable.
+     */
+    private static final class Item {
+        final String id;
+        final String name;
+        final Item dataSource;
+        final List<Item> variables = new ArrayList<>();
+        final AtomicLong values = new AtomicLong();
+
+        Item(final String id, final String name, final Item dataSource) {
+            this.id = id;
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+    }
+
+    private final int tokenRate;
+    private final Map<String, RateLimit> tokens = new ConcurrentHashMap<>();
+
+    // Guarded by this.
+    private final Map<String, Item> dataSources = new LinkedHashMap<>();
+    private final Map<String, Item> variables = new LinkedHashMap<>();
+    private long nextId = 0;
+
+    private final AtomicLong values = new AtomicLong();
+
+    /**
+     * @param threads the number of requests handled at the same time.
+     * @param latencyMs the delay added to every request.
+     * @param jitterMs the largest random delay added on top of the latency.
+     * @param accountRate the requests allowed per second across all tokens, 0 for no limit.
+     * @param tokenRate the requests allowed per second with each token, 0 for no limit.
+     * @throws IOException if the server cannot be started.
+     */
+    MockUbidots(final int threads, final long latencyMs, final long jitterMs, final int accountRate, final int tokenRate) throws IOException {
+        super(threads, latencyMs, jitterMs, accountRate);
+        this.tokenRate = tokenRate;
+    }
+
+    /**
+     * @return the base URL to give the UbidotsClient.
+     */
+    String apiUrl() {
+        return url() + basePath;
+    }
+
+    /**
+     * @return the number of values saved to all variables.
+     */
+    long values() {
+        return values.get();
+    }
+
+    /**
+     * @return the number of values saved to the variable, 0 if there is no such variable.
+     */
+    synchronized long values(final String dataSourceName, final String variableName) {
+        for (final Item v : variables.values()) {
+            if (v.dataSource.name.equals(dataSourceName) && v.name.equals(variableName)) {
+                return v.values.get();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    protected RateLimit extraLimit(final Map<String, String> headers) {
+        final String token = headers.get("x-auth-token");
+        return token != null ? tokens.get(token) : null;
+    }
+
+    @Override
+    protected int status(final String method, final String path) {
+        return "POST".equals(method) ? 201 : 200;
+    }
+
+    @Override
+    protected String errorBody(final int status, final String message) {
+        return "{\"code\":" + status + ",\"message\":\"" + message.replace("\"", "'") + "\"}";
+    }
+
+    @Override
+    protected synchronized String handle(final String method, final String fullPath, final Map<String, String> query, final Map<String, String> headers, final String body) throws HttpError {
+        if ( ! fullPath.startsWith(basePath)) {
+            throw new HttpError(404, "Not found.");
+        }
+        String path = fullPath.substring(basePath.length());
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        final String[] parts = path.split("/");
+
+        if ("POST".equals(method) && "auth/token".equals(path)) {
+            if ( ! apiKey.equals(headers.get("x-ubidots-apikey"))) {
+                throw new HttpError(401, "Authentication credentials were not provided.");
+            }
+            final String token = UUID.randomUUID().toString().replace("-", "");
+            tokens.put(token, new RateLimit(tokenRate));
+            return "{\"token\":\"" + token + "\"}";
+        }
+
+        final String token = headers.get("x-auth-token");
+        if (token == null || ! tokens.containsKey(token)) {
+            throw new HttpError(401, "Authentication credentials were not provided.");
+        }
+
+        if ("datasources".equals(parts[0])) {
+            if (parts.length == 1) {
+                if ("POST".equals(method)) {
+                    final Item ds = new Item(newId(), name(body), null);
+                    dataSources.put(ds.id, ds);
+                    return dataSource(ds);
+                }
+                return page(new ArrayList<>(dataSources.values()), path, query, true);
+            }
+
+            final Item ds = dataSources.get(parts[1]);
+            if (ds == null) {
+                throw new HttpError(404, "Not found.");
+            }
+            if (parts.length == 2) {
+                return dataSource(ds);
+            }
+            if (parts.length == 3 && "variables".equals(parts[2])) {
+                if ("POST".equals(method)) {
+                    final Item v = new Item(newId(), name(body), ds);
+                    ds.variables.add(v);
+                    variables.put(v.id, v);
+                    return variable(v);
+                }
+                return page(new ArrayList<>(ds.variables), path, query, false);
+            }
+        }
+
+        if ("variables".equals(parts[0]) && parts.length >= 2) {
+            final Item v = variables.get(parts[1]);
+            if (v == null) {
+                throw new HttpError(404, "Not found.");
+            }
+            if (parts.length == 2) {
+                return variable(v);
+            }
+            if (parts.length == 3 && "values".equals(parts[2]) && "POST".equals(method)) {
+                final List<?> saved = gson.fromJson(body, List.class);
+                if (saved == null) {
+                    throw new HttpError(400, "Expected a list of values.");
+                }
+                v.values.addAndGet(saved.size());
+                values.addAndGet(saved.size());
+
+                final StringBuilder sb = new StringBuilder("[");
+                for (int i = 0; i < saved.size(); i++) {
+                    sb.append(i > 0 ? "," : "").append("{\"status_code\":201}");
+                }
+                return sb.append(']').toString();
+            }
+        }
+
+        throw new HttpError(404, "Not found.");
+    }
+
+    private String newId() {
+        return String.format("%024x", ++nextId);
+    }
+
+    private static String name(final String body) throws HttpError {
+        final Map<?, ?> m = gson.fromJson(body, Map.class);
+        if (m == null || ! (m.get("name") instanceof String)) {
+            throw new HttpError(400, "name: This field is required.");
+        }
+        return (String)m.get("name");
+    }
+
+    /**
+     * A page of a list, as {"count", "next", "previous", "results"}.
+     */
+    private String page(final List<Item> items, final String path, final Map<String, String> query, final boolean isDataSource) {
+        final int size = Math.max(1, parseInt(query.get("page_size"), defaultPageSize));
+        final int page = Math.max(1, parseInt(query.get("page"), 1));
+        final int from = Math.min(items.size(), (page - 1) * size);
+        final int to = Math.min(items.size(), from + size);
+
+        final StringBuilder sb = new StringBuilder("{\"count\":").append(items.size()).append(",\"next\":");
+        sb.append(to < items.size() ? "\"" + apiUrl() + path + "/?page=" + (page + 1) + "&page_size=" + size + "\"" : "null");
+        sb.append(",\"previous\":").append(page > 1 ? "\"" + apiUrl() + path + "/?page=" + (page - 1) + "&page_size=" + size + "\"" : "null");
+        sb.append(",\"results\":[");
+        for (int i = from; i < to; i++) {
+            sb.append(i > from ? "," : "").append(isDataSource ? dataSource(items.get(i)) : variable(items.get(i)));
+        }
+        return sb.append("]}").toString();
+    }
+
+    private String dataSource(final Item ds) {
+        return "{\"id\":\"" + ds.id + "\",\"name\":" + gson.toJson(ds.name) + ",\"url\":\"" + apiUrl() + "datasources/" + ds.id
+            + "\",\"description\":null,\"tags\":[],\"context\":{},\"number_of_variables\":" + ds.variables.size()
+            + ",\"variables_url\":\"" + apiUrl() + "datasources/" + ds.id + "/variables\"}";
+    }
+
+    private String variable(final Item v) {
+        return "{\"id\":\"" + v.id + "\",\"name\":" + gson.toJson(v.name) + ",\"url\":\"" + apiUrl() + "variables/" + v.id
+            + "\",\"unit\":null,\"description\":null,\"tags\":[],\"properties\":{},\"datasource\":{\"id\":\"" + v.dataSource.id
+            + "\",\"name\":" + gson.toJson(v.dataSource.name) + ",\"url\":\"" + apiUrl() + "datasources/" + v.dataSource.id
+            + "\"},\"values_url\":\"" + apiUrl() + "variables/" + v.id + "/values\",\"last_value\":{}}";
+    }
+
+    private static int parseInt(final String s, final int defaultValue) {
+        try {
+            return s == null ? defaultValue : Integer.parseInt(s);
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+/**
+ * Checks the lookups {@link UbidotsCatalog} makes against {@link MockUbidots}, and the ids it
+ * keeps in its cache file.
+ */
+public class UbidotsCatalogTest {
+
+    private static final long ttl = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MockUbidots mock;
+    private UbidotsScheduler scheduler;
+    private UbidotsClient client;
+    private Path cache;
+
+    @Before
+    public void setUp() throws Exception {
+        mock = new MockUbidots(4, 0, 0, 0, 0);
+        scheduler = new UbidotsScheduler(MockUbidots.apiKey, mock.apiUrl(), new Metrics(), 2, 0, 0);
+        // Get both lanes' tokens so only lookups are counted as requests.
+        scheduler.lane().client();
+        client = scheduler.lane().client();
+        cache = tmp.getRoot().toPath().resolve("ubidots.json");
+    }
+
+    @After
+    public void tearDown() {
+        mock.close();
+    }
+
+    @Test
+    public void listsEachDataSourcesVariablesOnce() throws Exception {
+        final String ds = client.createDataSource("device").id;
+        final String a = client.createVariable(ds, "a").id;
+        final String b = client.createVariable(ds, "b").id;
+
+        final UbidotsCatalog catalog = new UbidotsCatalog(null, ttl);
+        final long before = mock.requests();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(a, catalog.variableId(scheduler.lane(), ds, "a"));
+            assertEquals(b, catalog.variableId(scheduler.lane(), ds, "b"));
+            assertNull(catalog.variableId(scheduler.lane(), ds, "c"));
+        }
+        assertEquals(1, mock.requests() - before);
+
+        final String c = catalog.createVariable(scheduler.lane(), ds, "c");
+        assertEquals(c, catalog.variableId(scheduler.lane(), ds, "c"));
+        assertEquals(2, mock.requests() - before);
+    }
+
+    @Test
+    public void usesCachedDataSourceIdsAndForgetsStaleOnes() throws Exception {
+        final String ds = client.createDataSource("Device").id;
+        final long now = System.currentTimeMillis();
+        writeCache("{\"dataSources\":{\"device\":{\"id\":\"" + ds + "\",\"seen\":" + now + "},"
+            + "\"deleted\":{\"id\":\"gone\",\"seen\":" + now + "}}}");
+
+        final UbidotsCatalog catalog = new UbidotsCatalog(cache, ttl);
+        final long before = mock.requests();
+        assertEquals(ds, catalog.dataSourceId(scheduler.lane(), "DEVICE"));
+        assertEquals(ds, catalog.dataSourceId(scheduler.lane(), "device"));
+        // The cached id is checked once, without listing the account's DataSources.
+        assertEquals(1, mock.requests() - before);
+
+        // An id that no longer works is looked up by name.
+        assertNull(catalog.dataSourceId(scheduler.lane(), "deleted"));
+        catalog.save();
+        assertFalse(readCache().containsKey("deleted"));
+        assertTrue(readCache().containsKey("device"));
+    }
+
+    @Test
+    public void idsNotUsedInARunStillExpire() throws Exception {
+        final String used = client.createDataSource("used").id;
+        final String unused = client.createDataSource("unused").id;
+        final long old = System.currentTimeMillis() - ttl + TimeUnit.MINUTES.toMillis(10);
+        writeCache("{\"dataSources\":{\"used\":{\"id\":\"" + used + "\",\"seen\":" + old + "},"
+            + "\"unused\":{\"id\":\"" + unused + "\",\"seen\":" + old + "},"
+            + "\"expired\":{\"id\":\"" + unused + "\",\"seen\":" + (old - ttl) + "}}}");
+
+        final UbidotsCatalog catalog = new UbidotsCatalog(cache, ttl);
+        assertEquals(used, catalog.dataSourceId(scheduler.lane(), "used"));
+        catalog.save();
+
+        final Map<String, Map<String, Object>> saved = readCache();
+        assertFalse(saved.containsKey("expired"));
+        assertEquals(old, ((Number)saved.get("unused").get("seen")).longValue());
+        assertTrue(((Number)saved.get("used").get("seen")).longValue() > old);
+    }
+
+    @Test
+    public void ignoresACacheItCannotRead() throws Exception {
+        final String ds = client.createDataSource("device").id;
+        writeCache("{\"saved\":1,\"dataSources\":{\"device\":\"" + ds + "\"}}");
+        assertEquals(ds, new UbidotsCatalog(cache, ttl).dataSourceId(scheduler.lane(), "device"));
+    }
+
+    private void writeCache(final String json) throws Exception {
+        Files.write(cache, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, Object>> readCache() throws Exception {
+        final Map<String, Object> ids = new Gson().fromJson(new String(Files.readAllBytes(cache), StandardCharsets.UTF_8), Map.class);
+        return (Map<String, Map<String, Object>>)ids.get("dataSources");
+    }
+}
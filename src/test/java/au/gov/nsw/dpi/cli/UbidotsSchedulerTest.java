@@ -0,0 +1,158 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+/**
+ * Checks the rate control of {@link UbidotsScheduler} and the errors {@link UbidotsClient}
+ * reports against {@link MockUbidots}, which answers requests over its rate limits with 429
+ * Too Many Requests as Ubidots does.
+ */
+public class UbidotsSchedulerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MockUbidots mock;
+
+    @After
+    public void tearDown() {
+        if (mock != null) {
+            mock.close();
+        }
+    }
+
+    @Test
+    public void slowsDownAndRetriesWhenTooManyRequestsAreMade() throws Exception {
+        // The mock allows 2 requests a second with each token, the scheduler tries 20.
+        mock = new MockUbidots(4, 0, 0, 0, 2);
+        final Metrics metrics = new Metrics();
+        final UbidotsScheduler scheduler = new UbidotsScheduler(MockUbidots.apiKey, mock.apiUrl(), metrics, 1, 20, 0);
+        final UbidotsScheduler.Lane lane = scheduler.lane();
+        final UbidotsClient client = lane.client();
+
+        final UbidotsClient.Item ds = lane.call("createDataSource", () -> client.createDataSource("device"));
+        final UbidotsClient.Item v = lane.call("createVariable", () -> client.createVariable(ds.id, "temperature"));
+        for (int i = 0; i < 4; i++) {
+            final long[] ts = { 1000L * i, 1000L * i + 1 };
+            final double[] values = { i, i + 0.5 };
+            lane.call("saveValues", () -> {
+                client.saveValues(v.id, ts, values);
+                return null;
+            });
+        }
+
+        assertTrue("the mock rejected no requests", mock.rejected() > 0);
+        assertEquals(8, mock.values("device", "temperature"));
+        assertTrue("the lane is still at " + lane.rate() + " requests/s", lane.rate() <= 10.5);
+        assertEquals(mock.rejected(), retries(metrics));
+    }
+
+    @Test
+    public void doesNotRetryOtherErrors() throws Exception {
+        mock = new MockUbidots(4, 0, 0, 0, 0);
+        final Metrics metrics = new Metrics();
+        final UbidotsScheduler.Lane lane = new UbidotsScheduler(MockUbidots.apiKey, mock.apiUrl(), metrics, 1, 20, 0).lane();
+        final UbidotsClient client = lane.client();
+
+        final UbidotsClient.StatusException e = assertThrows(UbidotsClient.StatusException.class, () -> lane.call("saveValues", () -> {
+            client.saveValues("missing", new long[] { 1 }, new double[] { 1 });
+            return null;
+        }));
+        assertEquals(404, e.status);
+        assertEquals(0, retries(metrics));
+        assertEquals(20.0, lane.rate(), 0.0);
+
+        assertNull(lane.call("getVariable", () -> client.variable("missing")));
+        assertNull(lane.call("getDataSource", () -> client.dataSource("missing")));
+    }
+
+    @Test
+    public void rejectsAWrongApiKey() throws Exception {
+        mock = new MockUbidots(4, 0, 0, 0, 0);
+        final UbidotsScheduler.Lane lane = new UbidotsScheduler("wrong", mock.apiUrl(), new Metrics(), 1, 20, 0).lane();
+        assertEquals(401, assertThrows(UbidotsClient.StatusException.class, lane::client).status);
+    }
+
+    @Test
+    public void listsEveryPage() throws Exception {
+        mock = new MockUbidots(4, 0, 0, 0, 0);
+        final UbidotsScheduler.Lane lane = new UbidotsScheduler(MockUbidots.apiKey, mock.apiUrl(), new Metrics(), 1, 0, 0).lane();
+        final UbidotsClient client = lane.client();
+
+        final UbidotsClient.Item ds = client.createDataSource("device");
+        for (int i = 0; i < 250; i++) {
+            client.createVariable(ds.id, "v" + i);
+        }
+        final List<UbidotsClient.Item> variables = client.variables(ds.id);
+        assertEquals(250, variables.size());
+        assertEquals("v249", variables.get(249).name);
+        assertEquals(1, client.dataSources().size());
+    }
+
+    @Test
+    public void requestsOnALaneAreMadeAtTheSameTime() throws Exception {
+        // Each request takes 200 ms, so 8 made one at a time would take 1.6 s.
+        mock = new MockUbidots(8, 200, 0, 0, 0);
+        final UbidotsScheduler.Lane lane = new UbidotsScheduler(MockUbidots.apiKey, mock.apiUrl(), new Metrics(), 1, 0, 0).lane();
+        final UbidotsClient client = lane.client();
+        final UbidotsClient.Item ds = client.createDataSource("device");
+        final UbidotsClient.Item v = client.createVariable(ds.id, "temperature");
+
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            final long start = System.nanoTime();
+            final List<Future<Object>> uploads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final long ts = i;
+                uploads.add(pool.submit(() -> lane.call("saveValues", () -> {
+                    client.saveValues(v.id, new long[] { ts }, new double[] { ts });
+                    return null;
+                })));
+            }
+            for (final Future<Object> f : uploads) {
+                f.get();
+            }
+            final long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            assertTrue("8 requests took " + elapsedMs + " ms", elapsedMs < 800);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(8, mock.values());
+    }
+
+    /**
+     * @return the retries of saveValues requests recorded in the metrics.
+     */
+    private long retries(final Metrics metrics) throws Exception {
+        final Path file = tmp.newFile("metrics.json").toPath();
+        metrics.write(file);
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            final Map<?, ?> report = new Gson().fromJson(reader, Map.class);
+            final Map<?, ?> saveValues = (Map<?, ?>)((Map<?, ?>)report.get("requests")).get("ubidots.saveValues");
+            return saveValues != null ? ((Number)saveValues.get("retries")).longValue() : 0;
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package au.gov.nsw.dpi.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the request body sizes {@link UploadBatcher} works out against the body Gson writes
+ * for the batch, the body {@link UbidotsClient#saveValues} sends.
+ */
+public class UploadBatcherTest {
+
+    @Test
+    public void sizeIsTheEncodedBodySize() {
+        final Random random = new Random(14);
+        for (final int maxBytes : new int[] { 1, 100, 1000, 10000 }) {
+            final UploadBatcher batcher = new UploadBatcher(maxBytes);
+            final List<UploadQueue.Batch> batches = new ArrayList<>();
+            final List<Double> added = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) {
+                final double v = randomValue(random);
+                added.add(v);
+                final UploadQueue.Batch full = batcher.add(randomTs(random), v);
+                if (full != null) {
+                    batches.add(full);
+                }
+            }
+            final UploadQueue.Batch last = batcher.flush();
+            if (last != null) {
+                batches.add(last);
+            }
+
+            int count = 0;
+            for (final UploadQueue.Batch b : batches) {
+                final int bodyBytes = body(b).getBytes(StandardCharsets.UTF_8).length;
+                assertEquals(body(b), bodyBytes, b.bytes);
+                assertTrue("batch of " + b.size() + " is " + bodyBytes + " bytes, limit " + maxBytes, b.size() == 1 || bodyBytes <= maxBytes);
+                for (int i = 0; i < b.size(); i++) {
+                    assertEquals(added.get(count++), b.values[i], 0.0);
+                }
+            }
+            assertEquals(added.size(), count);
+        }
+    }
+
+    @Test
+    public void fillsBatchesUpToTheLimit() {
+        // Each reading of 1.0 at a 13 digit time is {"value":1.0,"timestamp":1609459200000},
+        // 39 bytes, and the batch adds [] and a comma between readings.
+        final UploadBatcher batcher = new UploadBatcher(2 + 39 * 10 + 9);
+        UploadQueue.Batch full = null;
+        for (int i = 0; full == null; i++) {
+            full = batcher.add(1609459200000L + i, 1.0);
+        }
+        assertEquals(10, full.size());
+        assertEquals(2 + 39 * 10 + 9, full.bytes);
+    }
+
+    private static String body(final UploadQueue.Batch batch) {
+        return UbidotsClient.valuesBody(batch.timestamps, batch.values);
+    }
+
+    private static long randomTs(final Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(1000) - 500;
+            case 1:
+                return random.nextLong();
+            default:
+                return 1609459200000L + random.nextInt(1_000_000_000);
+        }
+    }
+
+    private static double randomValue(final Random random) {
+        switch (random.nextInt(9)) {
+            case 0:
+                return random.nextInt(100);
+            case 1:
+                return -random.nextInt(10_000_000);
+            case 2:
+                return random.nextInt(1000) * 1e7;
+            case 3:
+                return Math.round(random.nextGaussian() * 1000) / 10.0;
+            case 4:
+                return random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+            case 5:
+                return new double[] { 0.0, -0.0, 9999999.0, 10000000.0, -9999999.0, Double.MIN_VALUE, Double.MAX_VALUE, 1e-3, 1e-4 }[random.nextInt(9)];
+            case 6:
+                return (double)random.nextLong();
+            default:
+                return random.nextGaussian() * 100;
+        }
+    }
+}